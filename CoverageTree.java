@@ -0,0 +1,143 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static R-tree over the covered areas of TrackDB entries,
+ * bulk loaded by sort-tile-recursive packing. Every level is
+ * stored in flat arrays; node i of a level has the children
+ * i*FANOUT to i*FANOUT+FANOUT-1 of the level below.
+ * Immutable, so queries need no locking.
+ */
+final class CoverageTree {
+	private static final int FANOUT = 16;
+
+	// version of the summaries the tree was built from
+	final long version;
+	private final TrackDBEntry[] entries;
+	private final TrackSummary[] summaries;
+	// boxes per level, level 0 are the entries, the last the root
+	private final double[][] minLon;
+	private final double[][] minLat;
+	private final double[][] maxLon;
+	private final double[][] maxLat;
+
+	/**
+	 * Builds the tree over the entries with a non empty summary.
+	 * @param version of the summaries, see TrackDB
+	 */
+	CoverageTree(Iterable<TrackDBEntry> all, long version) {
+		this.version = version;
+		List<TrackDBEntry> list = new ArrayList<TrackDBEntry>();
+		List<TrackSummary> sums = new ArrayList<TrackSummary>();
+		for (TrackDBEntry e : all) {
+			TrackSummary s = e.getSummary();
+			if (s != null && !s.isEmpty()) {
+				list.add(e);
+				sums.add(s);
+			}
+		}
+		int n = list.size();
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		final TrackSummary[] s = sums.toArray(new TrackSummary[n]);
+		// sort by x, cut into vertical slices, sort each slice by y
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(centerLon(s[a]), centerLon(s[b]));
+			}
+		});
+		int leaves = (n + FANOUT - 1) / FANOUT;
+		int sliceSize = (int) Math.ceil(Math.sqrt(leaves)) * FANOUT;
+		for (int from = 0; from < n; from += sliceSize) {
+			Arrays.sort(order, from, Math.min(n, from + sliceSize), new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(centerLat(s[a]), centerLat(s[b]));
+				}
+			});
+		}
+		entries = new TrackDBEntry[n];
+		summaries = new TrackSummary[n];
+		for (int i = 0; i < n; i++) {
+			entries[i] = list.get(order[i]);
+			summaries[i] = s[order[i]];
+		}
+
+		int levels = 1;
+		for (int size = n; size > 1; size = (size + FANOUT - 1) / FANOUT)
+			levels++;
+		minLon = new double[levels][];
+		minLat = new double[levels][];
+		maxLon = new double[levels][];
+		maxLat = new double[levels][];
+		minLon[0] = new double[n];
+		minLat[0] = new double[n];
+		maxLon[0] = new double[n];
+		maxLat[0] = new double[n];
+		for (int i = 0; i < n; i++) {
+			minLon[0][i] = summaries[i].coverMinLongitude;
+			minLat[0][i] = summaries[i].coverMinLatitude;
+			maxLon[0][i] = summaries[i].coverMaxLongitude;
+			maxLat[0][i] = summaries[i].coverMaxLatitude;
+		}
+		for (int level = 1; level < levels; level++) {
+			int below = minLon[level - 1].length;
+			int size = (below + FANOUT - 1) / FANOUT;
+			minLon[level] = new double[size];
+			minLat[level] = new double[size];
+			maxLon[level] = new double[size];
+			maxLat[level] = new double[size];
+			Arrays.fill(minLon[level], Double.POSITIVE_INFINITY);
+			Arrays.fill(minLat[level], Double.POSITIVE_INFINITY);
+			Arrays.fill(maxLon[level], Double.NEGATIVE_INFINITY);
+			Arrays.fill(maxLat[level], Double.NEGATIVE_INFINITY);
+			for (int i = 0; i < below; i++) {
+				int p = i / FANOUT;
+				minLon[level][p] = Math.min(minLon[level][p], minLon[level - 1][i]);
+				minLat[level][p] = Math.min(minLat[level][p], minLat[level - 1][i]);
+				maxLon[level][p] = Math.max(maxLon[level][p], maxLon[level - 1][i]);
+				maxLat[level][p] = Math.max(maxLat[level][p], maxLat[level - 1][i]);
+			}
+		}
+	}
+
+	private static double centerLon(TrackSummary s) {
+		return (s.coverMinLongitude + s.coverMaxLongitude) / 2;
+	}
+
+	private static double centerLat(TrackSummary s) {
+		return (s.coverMinLatitude + s.coverMaxLatitude) / 2;
+	}
+
+	int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Adds the entries whose summary contains the point to result.
+	 */
+	void query(double longitude, double latitude, List<TrackDBEntry> result) {
+		if (entries.length > 0)
+			query(minLon.length - 1, 0, longitude, latitude, result);
+	}
+
+	private void query(int level, int node, double lon, double lat, List<TrackDBEntry> result) {
+		if (lon < minLon[level][node] || lon > maxLon[level][node]
+				|| lat < minLat[level][node] || lat > maxLat[level][node])
+			return;
+		if (level == 0) {
+			if (summaries[node].contains(lon, lat))
+				result.add(entries[node]);
+			return;
+		}
+		int end = Math.min(minLon[level - 1].length, (node + 1) * FANOUT);
+		for (int child = node * FANOUT; child < end; child++)
+			query(level - 1, child, lon, lat, result);
+	}
+}
@@ -0,0 +1,378 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Incremental Delaunay triangulation of the image points of Markers.
+ * Inserting a marker only re-triangulates the triangles whose
+ * circumcircle contains it (Bowyer-Watson), removing one only its
+ * surrounding polygon. Every vertex knows its Marker, so no lookup
+ * by coordinates is needed.
+ * The points are enclosed by a large super triangle whose vertices
+ * have no Marker. Triangles touching it are not reported.
+ */
+public class DelaunayTriangulation {
+	// how much larger than the bounds the super triangle is
+	private static final long SUPER_TRIANGLE_SCALE = 65536;
+
+	static final class Vertex {
+		final double x;
+		final double y;
+		final Marker marker;
+		// some live triangle containing this vertex
+		Triangle triangle;
+
+		Vertex(double x, double y, Marker marker) {
+			this.x = x;
+			this.y = y;
+			this.marker = marker;
+		}
+	}
+
+	/**
+	 * Counter clockwise triangle, n[i] is the neighbor
+	 * across the edge opposite of v[i].
+	 */
+	static final class Triangle {
+		final Vertex[] v;
+		final Triangle[] n = new Triangle[3];
+		boolean alive = true;
+
+		Triangle(Vertex a, Vertex b, Vertex c) {
+			v = new Vertex[] { a, b, c };
+		}
+
+		int indexOf(Vertex x) {
+			return (v[0] == x) ? 0 : (v[1] == x) ? 1 : (v[2] == x) ? 2 : -1;
+		}
+
+		boolean isReal() {
+			return v[0].marker != null && v[1].marker != null && v[2].marker != null;
+		}
+	}
+
+	private final LinkedHashSet<Triangle> triangles = new LinkedHashSet<Triangle>();
+	private final IdentityHashMap<Marker, Vertex> vertices = new IdentityHashMap<Marker, Vertex>();
+	private long boundsMinX, boundsMinY, boundsMaxX, boundsMaxY;
+	private Vertex[] superVertices;
+	private Triangle lastLocated;
+
+	/**
+	 * @param width, height: expected range of the image points.
+	 * Points outside are allowed but require a full rebuild.
+	 */
+	public DelaunayTriangulation(int width, int height) {
+		initSuperTriangle(0, 0, Math.max(width, 1), Math.max(height, 1));
+	}
+
+	private void initSuperTriangle(long minX, long minY, long maxX, long maxY) {
+		boundsMinX = minX;
+		boundsMinY = minY;
+		boundsMaxX = maxX;
+		boundsMaxY = maxY;
+		long size = Math.max(maxX - minX, maxY - minY) * SUPER_TRIANGLE_SCALE;
+		long cx = (minX + maxX) / 2;
+		long cy = (minY + maxY) / 2;
+		superVertices = new Vertex[] {
+				new Vertex(cx - 2 * size, cy - size, null),
+				new Vertex(cx + 2 * size, cy - size, null),
+				new Vertex(cx, cy + 2 * size, null) };
+		Triangle t = new Triangle(superVertices[0], superVertices[1], superVertices[2]);
+		for (Vertex sv : superVertices)
+			sv.triangle = t;
+		triangles.clear();
+		triangles.add(t);
+		lastLocated = t;
+	}
+
+	public int size() {
+		return vertices.size();
+	}
+
+	public boolean contains(Marker m) {
+		return vertices.containsKey(m);
+	}
+
+	/**
+	 * @return all triangulated Markers
+	 */
+	public List<Marker> getMarkers() {
+		return new ArrayList<Marker>(vertices.keySet());
+	}
+
+	/**
+	 * @return the triangles as Marker triples, without the
+	 * ones touching the super triangle.
+	 */
+	public List<Marker[]> getTriangles() {
+		ArrayList<Marker[]> result = new ArrayList<Marker[]>();
+		for (Triangle t : triangles) {
+			if (t.isReal())
+				result.add(new Marker[] { t.v[0].marker, t.v[1].marker, t.v[2].marker });
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the image point of m.
+	 * @return false if m or a marker with the same image point is already known
+	 */
+	public boolean insert(Marker m) {
+		if (vertices.containsKey(m))
+			return false;
+		long x = m.imgpoint.x;
+		long y = m.imgpoint.y;
+		if (x < boundsMinX || y < boundsMinY || x > boundsMaxX || y > boundsMaxY) {
+			rebuild(Math.min(x, boundsMinX), Math.min(y, boundsMinY),
+					Math.max(x, boundsMaxX), Math.max(y, boundsMaxY));
+		}
+		Vertex p = new Vertex(x, y, m);
+		Triangle start = locate(p);
+		for (Vertex q : start.v) {
+			if (q.x == p.x && q.y == p.y)
+				return false;
+		}
+
+		// Collect the cavity: all triangles whose circumcircle contains p
+		ArrayList<Triangle> cavity = new ArrayList<Triangle>();
+		start.alive = false;
+		cavity.add(start);
+		for (int i = 0; i < cavity.size(); i++) {
+			Triangle t = cavity.get(i);
+			for (Triangle nb : t.n) {
+				if (nb != null && nb.alive && inCircle(nb.v[0], nb.v[1], nb.v[2], p) > 0) {
+					nb.alive = false;
+					cavity.add(nb);
+				}
+			}
+		}
+
+		// Connect p to every boundary edge of the cavity
+		HashMap<Vertex, Triangle> byFirst = new HashMap<Vertex, Triangle>();
+		HashMap<Vertex, Triangle> bySecond = new HashMap<Vertex, Triangle>();
+		for (Triangle t : cavity) {
+			triangles.remove(t);
+			for (int i = 0; i < 3; i++) {
+				Triangle outer = t.n[i];
+				if (outer != null && !outer.alive)
+					continue;
+				Vertex a = t.v[(i + 1) % 3];
+				Vertex b = t.v[(i + 2) % 3];
+				Triangle nt = new Triangle(p, a, b);
+				nt.n[0] = outer;
+				if (outer != null)
+					relink(outer, a, b, nt);
+				byFirst.put(a, nt);
+				bySecond.put(b, nt);
+				triangles.add(nt);
+				a.triangle = nt;
+				b.triangle = nt;
+				p.triangle = nt;
+			}
+		}
+		for (Triangle nt : byFirst.values()) {
+			// neighbor across (b, p) starts at b, across (p, a) ends at a
+			nt.n[1] = byFirst.get(nt.v[2]);
+			nt.n[2] = bySecond.get(nt.v[1]);
+		}
+		lastLocated = p.triangle;
+		vertices.put(m, p);
+		return true;
+	}
+
+	/**
+	 * Removes m and re-triangulates the polygon around it.
+	 * @return false if m was not triangulated
+	 */
+	public boolean remove(Marker m) {
+		Vertex v = vertices.remove(m);
+		if (v == null)
+			return false;
+
+		// Walk around v counter clockwise, collecting the surrounding
+		// polygon and the triangles outside each of its edges.
+		ArrayList<Vertex> polygon = new ArrayList<Vertex>();
+		ArrayList<Triangle> outer = new ArrayList<Triangle>();
+		Triangle t = v.triangle;
+		do {
+			int i = t.indexOf(v);
+			polygon.add(t.v[(i + 1) % 3]);
+			outer.add(t.n[i]);
+			t.alive = false;
+			triangles.remove(t);
+			t = t.n[(i + 1) % 3];
+		} while (t != v.triangle);
+
+		// Cut off Delaunay ears until one triangle remains
+		Triangle last = null;
+		while (polygon.size() >= 3) {
+			int size = polygon.size();
+			int ear = (size == 3) ? 0 : findEar(polygon);
+			Vertex a = polygon.get(ear);
+			Vertex b = polygon.get((ear + 1) % size);
+			Vertex c = polygon.get((ear + 2) % size);
+			Triangle nt = new Triangle(a, b, c);
+			nt.n[2] = outer.get(ear);
+			nt.n[0] = outer.get((ear + 1) % size);
+			if (size == 3)
+				nt.n[1] = outer.get(2);
+			for (int i = 0; i < 3; i++) {
+				if (nt.n[i] != null)
+					relink(nt.n[i], nt.v[(i + 1) % 3], nt.v[(i + 2) % 3], nt);
+			}
+			triangles.add(nt);
+			a.triangle = nt;
+			b.triangle = nt;
+			c.triangle = nt;
+			last = nt;
+			if (size == 3)
+				break;
+			// the new edge (a, c) replaces a - b - c
+			outer.set(ear, nt);
+			polygon.remove((ear + 1) % size);
+			outer.remove((ear + 1) % size);
+		}
+		lastLocated = last;
+		return true;
+	}
+
+	/**
+	 * @return index k so that polygon[k], [k+1], [k+2] form a convex
+	 * ear whose circumcircle has no other polygon vertex inside.
+	 */
+	private int findEar(List<Vertex> polygon) {
+		int size = polygon.size();
+		for (int k = 0; k < size; k++) {
+			Vertex a = polygon.get(k);
+			Vertex b = polygon.get((k + 1) % size);
+			Vertex c = polygon.get((k + 2) % size);
+			if (orient(a, b, c) <= 0)
+				continue;
+			boolean empty = true;
+			for (int j = 3; j < size && empty; j++) {
+				if (inCircle(a, b, c, polygon.get((k + j) % size)) > 0)
+					empty = false;
+			}
+			if (empty)
+				return k;
+		}
+		// only reachable through rounding trouble, any convex ear will do
+		for (int k = 0; k < size; k++) {
+			if (orient(polygon.get(k), polygon.get((k + 1) % size), polygon.get((k + 2) % size)) > 0)
+				return k;
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the neighbor of t across edge (a, b) to nt.
+	 */
+	private static void relink(Triangle t, Vertex a, Vertex b, Triangle nt) {
+		for (int i = 0; i < 3; i++) {
+			Vertex x = t.v[(i + 1) % 3];
+			Vertex y = t.v[(i + 2) % 3];
+			if ((x == a && y == b) || (x == b && y == a)) {
+				t.n[i] = nt;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Walks from the last touched triangle to the one containing p.
+	 */
+	private Triangle locate(Vertex p) {
+		Triangle t = lastLocated;
+		if (t == null || !t.alive)
+			t = triangles.iterator().next();
+		int steps = 0;
+		int maxSteps = 4 * triangles.size() + 16;
+		walk: while (steps++ < maxSteps) {
+			// start at a varying edge so the walk cannot cycle
+			int first = steps % 3;
+			for (int k = 0; k < 3; k++) {
+				int i = (first + k) % 3;
+				if (t.n[i] != null && orient(t.v[(i + 1) % 3], t.v[(i + 2) % 3], p) < 0) {
+					t = t.n[i];
+					continue walk;
+				}
+			}
+			return t;
+		}
+		// should not happen, fall back to a full scan
+		for (Triangle c : triangles) {
+			if (orient(c.v[0], c.v[1], p) >= 0 && orient(c.v[1], c.v[2], p) >= 0
+					&& orient(c.v[2], c.v[0], p) >= 0)
+				return c;
+		}
+		return t;
+	}
+
+	private void rebuild(long minX, long minY, long maxX, long maxY) {
+		List<Marker> markers = getMarkers();
+		vertices.clear();
+		long margin = Math.max(maxX - minX, maxY - minY);
+		initSuperTriangle(minX - margin, minY - margin, maxX + margin, maxY + margin);
+		for (Marker m : markers)
+			insert(m);
+	}
+
+	/**
+	 * @return positive if a, b, c are counter clockwise, 0 if collinear
+	 */
+	static int orient(Vertex a, Vertex b, Vertex c) {
+		// all coordinates are integers small enough for exact doubles
+		double det = (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+		double bound = 1e-15 * (Math.abs((b.x - a.x) * (c.y - a.y)) + Math.abs((b.y - a.y) * (c.x - a.x)));
+		if (det > bound)
+			return 1;
+		if (det < -bound)
+			return -1;
+		BigInteger exact = big(b.x - a.x).multiply(big(c.y - a.y))
+				.subtract(big(b.y - a.y).multiply(big(c.x - a.x)));
+		return exact.signum();
+	}
+
+	/**
+	 * @return positive if d lies inside the circumcircle of the
+	 * counter clockwise triangle a, b, c, 0 if on it
+	 */
+	static int inCircle(Vertex a, Vertex b, Vertex c, Vertex d) {
+		double adx = a.x - d.x, ady = a.y - d.y;
+		double bdx = b.x - d.x, bdy = b.y - d.y;
+		double cdx = c.x - d.x, cdy = c.y - d.y;
+		double alift = adx * adx + ady * ady;
+		double blift = bdx * bdx + bdy * bdy;
+		double clift = cdx * cdx + cdy * cdy;
+		double det = alift * (bdx * cdy - cdx * bdy)
+				+ blift * (cdx * ady - adx * cdy)
+				+ clift * (adx * bdy - bdx * ady);
+		double permanent = alift * (Math.abs(bdx * cdy) + Math.abs(cdx * bdy))
+				+ blift * (Math.abs(cdx * ady) + Math.abs(adx * cdy))
+				+ clift * (Math.abs(adx * bdy) + Math.abs(bdx * ady));
+		double bound = 1e-14 * permanent;
+		if (det > bound)
+			return 1;
+		if (det < -bound)
+			return -1;
+		BigInteger badx = big(adx), bady = big(ady);
+		BigInteger bbdx = big(bdx), bbdy = big(bdy);
+		BigInteger bcdx = big(cdx), bcdy = big(cdy);
+		BigInteger balift = badx.multiply(badx).add(bady.multiply(bady));
+		BigInteger bblift = bbdx.multiply(bbdx).add(bbdy.multiply(bbdy));
+		BigInteger bclift = bcdx.multiply(bcdx).add(bcdy.multiply(bcdy));
+		BigInteger exact = balift.multiply(bbdx.multiply(bcdy).subtract(bcdx.multiply(bbdy)))
+				.add(bblift.multiply(bcdx.multiply(bady).subtract(badx.multiply(bcdy))))
+				.add(bclift.multiply(badx.multiply(bbdy).subtract(bbdx.multiply(bady))));
+		return exact.signum();
+	}
+
+	private static BigInteger big(double integral) {
+		return BigInteger.valueOf((long) integral);
+	}
+}
@@ -24,7 +24,7 @@ import java.io.Serializable;
  */
 public class GpsPoint implements Serializable {
 	private static final long serialVersionUID = 1L;
-	static private  transient double  RADIUS = 6371;  // earth's mean radius in km
+	static final double RADIUS = 6371;  // earth's mean radius in km
 	
 	public double longitude;
 	public double latitude;
@@ -102,11 +102,20 @@ public class GpsPoint implements Serializable {
 	 * @returns {Number} distance in km between this point and destination point
 	 */
 	public double getSphericalDistance(GpsPoint point) {
+		return getSphericalDistance(longitude, latitude, point.longitude, point.latitude);
+	}
+
+	/**
+	 * Same as getSphericalDistance(GpsPoint) for
+	 * positions not stored as GpsPoints.
+	 */
+	static double getSphericalDistance(double longitude1, double latitude1,
+			double longitude2, double latitude2) {
 
 		double R = RADIUS;
-		double phi1 = this.latitude * Math.PI / 180d, lambda1 = this.longitude
+		double phi1 = latitude1 * Math.PI / 180d, lambda1 = longitude1
 				* Math.PI / 180d;
-		double phi2 = point.latitude * Math.PI / 180d, lambda2 = point.longitude
+		double phi2 = latitude2 * Math.PI / 180d, lambda2 = longitude2
 				* Math.PI / 180d;
 		double deltaLamda = phi2 - phi1;
 		double deltaLambda = lambda2 - lambda1;
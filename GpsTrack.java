@@ -0,0 +1,411 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Growable store of GPS fixes in primitive arrays, one per field,
+ * instead of one GpsPoint object per fix. Coordinates are kept in
+ * units of 1e-7 degrees (about 1 cm), so a fix takes 16 bytes.
+ * This is lossy: added coordinates are rounded to the nearest unit,
+ * so a fix read back can differ from the added GpsPoint by up to
+ * 5e-8 degrees and does not equal it. Times are kept exactly.
+ * A track can also start on read only fixes, e.g. records in a
+ * mapped file, that are read on access; appended fixes go to the
+ * arrays.
+ * Not thread safe.
+ */
+public class GpsTrack {
+	// coordinate units per degree
+	static final double SCALE = 1e7;
+	private static final int INITIAL_CAPACITY = 64;
+	// little endian record: long time, int longitude, int latitude
+	static final int RECORD_SIZE = 16;
+	private static final int WRITE_CHUNK = 4096;
+
+	// the first mappedCount fixes, null if there are none
+	private Source mapped;
+	private int mappedCount;
+	// fixes mappedCount to size-1
+	private long[] times;
+	private int[] longitudes;
+	private int[] latitudes;
+	private int size;
+
+	public GpsTrack() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public GpsTrack(int capacity) {
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		longitudes = new int[capacity];
+		latitudes = new int[capacity];
+	}
+
+	/**
+	 * Creates a track on count records at the start of buffer.
+	 * The buffer is referenced, not copied, and read on access.
+	 */
+	static GpsTrack map(ByteBuffer buffer, int count) {
+		ByteBuffer records = buffer.duplicate();
+		records.limit(records.position() + count * RECORD_SIZE);
+		return map(new RecordSource(records.slice().order(ByteOrder.LITTLE_ENDIAN)), count);
+	}
+
+	/**
+	 * Creates a track on the first count fixes of source.
+	 */
+	static GpsTrack map(Source source, int count) {
+		GpsTrack track = new GpsTrack(INITIAL_CAPACITY);
+		if (count > 0) {
+			track.mapped = source;
+			track.mappedCount = count;
+			track.size = count;
+		}
+		return track;
+	}
+
+	/**
+	 * @return independent copy of this track. Mapped data is
+	 * shared, it is never written.
+	 */
+	GpsTrack copy() {
+		GpsTrack track = new GpsTrack(INITIAL_CAPACITY);
+		track.mapped = (mapped == null) ? null : mapped.copy();
+		track.mappedCount = mappedCount;
+		track.times = times.clone();
+		track.longitudes = longitudes.clone();
+		track.latitudes = latitudes.clone();
+		track.size = size;
+		return track;
+	}
+
+	/**
+	 * @return approximate bytes this track keeps on the heap
+	 */
+	long getHeapSize() {
+		long bytes = (long) times.length * RECORD_SIZE;
+		if (mapped != null)
+			bytes += mapped.getHeapSize();
+		return bytes;
+	}
+
+	/**
+	 * Writes all fixes as records to channel.
+	 */
+	void writeRecords(WritableByteChannel channel) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK * RECORD_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < size; i++) {
+			chunk.putLong(rawTime(i));
+			chunk.putInt(rawLongitude(i));
+			chunk.putInt(rawLatitude(i));
+			if (!chunk.hasRemaining() || i == size - 1) {
+				chunk.flip();
+				while (chunk.hasRemaining())
+					channel.write(chunk);
+				chunk.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return little endian buffer with the fixes from index from
+	 * on as records, ready to be written
+	 */
+	ByteBuffer getRecords(int from) {
+		ByteBuffer records = ByteBuffer.allocate((size - from) * RECORD_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = from; i < size; i++) {
+			records.putLong(rawTime(i));
+			records.putInt(rawLongitude(i));
+			records.putInt(rawLatitude(i));
+		}
+		records.flip();
+		return records;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(GpsPoint p) {
+		add(p.time, p.longitude, p.latitude);
+	}
+
+	public void add(long time, double longitude, double latitude) {
+		addFixed(time, toFixed(longitude), toFixed(latitude));
+	}
+
+	/**
+	 * Adds the fixes at offset..offset+count of the arrays,
+	 * growing the storage at most once.
+	 */
+	public void addAll(long[] times, double[] longitudes, double[] latitudes,
+			int offset, int count) {
+		ensureCapacity(size - mappedCount + count);
+		for (int i = offset; i < offset + count; i++)
+			addFixed(times[i], toFixed(longitudes[i]), toFixed(latitudes[i]));
+	}
+
+	/**
+	 * Adds a fix with coordinates in units of 1/SCALE degrees.
+	 */
+	void addFixed(long time, int longitude, int latitude) {
+		int j = size - mappedCount;
+		if (j == times.length)
+			ensureCapacity(j + (j >> 1) + 1);
+		times[j] = time;
+		longitudes[j] = longitude;
+		latitudes[j] = latitude;
+		size++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= times.length)
+			return;
+		times = Arrays.copyOf(times, capacity);
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+	}
+
+	public long getTime(int i) {
+		checkIndex(i);
+		return rawTime(i);
+	}
+
+	public double getLongitude(int i) {
+		checkIndex(i);
+		return rawLongitude(i) / SCALE;
+	}
+
+	public double getLatitude(int i) {
+		checkIndex(i);
+		return rawLatitude(i) / SCALE;
+	}
+
+	/**
+	 * @return new GpsPoint with the values of fix i
+	 */
+	public GpsPoint get(int i) {
+		checkIndex(i);
+		return new GpsPoint(rawLongitude(i) / SCALE, rawLatitude(i) / SCALE, rawTime(i));
+	}
+
+	/**
+	 * @return index of the last fix equal to p in the stored
+	 * precision, -1 if there is none
+	 */
+	public int lastIndexOf(GpsPoint p) {
+		int lon = toFixed(p.longitude);
+		int lat = toFixed(p.latitude);
+		for (int i = size - 1; i >= 0; i--) {
+			if (rawTime(i) == p.time && rawLongitude(i) == lon && rawLatitude(i) == lat)
+				return i;
+		}
+		return -1;
+	}
+
+	public void remove(int i) {
+		checkIndex(i);
+		if (i < mappedCount)
+			unmap();
+		int j = i - mappedCount;
+		int tail = size - i - 1;
+		System.arraycopy(times, j + 1, times, j, tail);
+		System.arraycopy(longitudes, j + 1, longitudes, j, tail);
+		System.arraycopy(latitudes, j + 1, latitudes, j, tail);
+		size--;
+	}
+
+	public void clear() {
+		mapped = null;
+		mappedCount = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return cursor before the first fix
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * @return read only view of the fixes as GpsPoints, created on
+	 * every access. Follows later changes of the track.
+	 */
+	public List<GpsPoint> asList() {
+		return new PointList();
+	}
+
+	/**
+	 * Copies the mapped fixes into the arrays.
+	 */
+	private void unmap() {
+		int appended = size - mappedCount;
+		long[] newTimes = new long[size + (size >> 1) + 1];
+		int[] newLongitudes = new int[newTimes.length];
+		int[] newLatitudes = new int[newTimes.length];
+		for (int i = 0; i < mappedCount; i++) {
+			newTimes[i] = rawTime(i);
+			newLongitudes[i] = rawLongitude(i);
+			newLatitudes[i] = rawLatitude(i);
+		}
+		System.arraycopy(times, 0, newTimes, mappedCount, appended);
+		System.arraycopy(longitudes, 0, newLongitudes, mappedCount, appended);
+		System.arraycopy(latitudes, 0, newLatitudes, mappedCount, appended);
+		times = newTimes;
+		longitudes = newLongitudes;
+		latitudes = newLatitudes;
+		mapped = null;
+		mappedCount = 0;
+	}
+
+	// unchecked access, coordinates in units of 1/SCALE degrees
+	long rawTime(int i) {
+		if (i < mappedCount)
+			return mapped.getTime(i);
+		return times[i - mappedCount];
+	}
+
+	int rawLongitude(int i) {
+		if (i < mappedCount)
+			return mapped.getLongitude(i);
+		return longitudes[i - mappedCount];
+	}
+
+	int rawLatitude(int i) {
+		if (i < mappedCount)
+			return mapped.getLatitude(i);
+		return latitudes[i - mappedCount];
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+	}
+
+	private static int toFixed(double degrees) {
+		return (int) Math.round(degrees * SCALE);
+	}
+
+	/**
+	 * Read only fixes a track can start with.
+	 * Coordinates are in units of 1/SCALE degrees.
+	 */
+	interface Source {
+		long getTime(int i);
+
+		int getLongitude(int i);
+
+		int getLatitude(int i);
+
+		/**
+		 * @return source on the same data with its own state,
+		 * for use by another track
+		 */
+		Source copy();
+
+		/**
+		 * @return bytes of decoded data kept on the heap
+		 */
+		long getHeapSize();
+	}
+
+	private static final class RecordSource implements Source {
+		private final ByteBuffer records;
+
+		RecordSource(ByteBuffer records) {
+			this.records = records;
+		}
+
+		@Override
+		public long getTime(int i) {
+			return records.getLong(i * RECORD_SIZE);
+		}
+
+		@Override
+		public int getLongitude(int i) {
+			return records.getInt(i * RECORD_SIZE + 8);
+		}
+
+		@Override
+		public int getLatitude(int i) {
+			return records.getInt(i * RECORD_SIZE + 12);
+		}
+
+		@Override
+		public Source copy() {
+			return this;
+		}
+
+		@Override
+		public long getHeapSize() {
+			return 0;
+		}
+	}
+
+	/**
+	 * Walks over the fixes without creating objects.
+	 * <pre>
+	 * GpsTrack.Cursor c = track.cursor();
+	 * while (c.next())
+	 *     use(c.getLongitude(), c.getLatitude());
+	 * </pre>
+	 */
+	public final class Cursor {
+		private int index = -1;
+
+		/**
+		 * Moves to the next fix.
+		 * @return false if there is none
+		 */
+		public boolean next() {
+			if (index + 1 >= size)
+				return false;
+			index++;
+			return true;
+		}
+
+		public void moveTo(int i) {
+			checkIndex(i);
+			index = i;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public long getTime() {
+			return rawTime(index);
+		}
+
+		public double getLongitude() {
+			return rawLongitude(index) / SCALE;
+		}
+
+		public double getLatitude() {
+			return rawLatitude(index) / SCALE;
+		}
+	}
+
+	private final class PointList extends AbstractList<GpsPoint> implements RandomAccess {
+		@Override
+		public GpsPoint get(int index) {
+			return GpsTrack.this.get(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact encoding of GpsTrack fixes. Coordinates are quantised
+ * to step units of 1/GpsTrack.SCALE degrees and stored as zig-zag
+ * varint deltas to the previous fix, times as zig-zag varint
+ * delta of the previous delta. A walk recorded every second then
+ * takes about 5 bytes per fix.
+ *
+ * The fixes are split into pages that decode independently:
+ * <pre>
+ * int page size, int page count,
+ * long last time, int last longitude, int last latitude,
+ * long offset of every page and of the end of the last page,
+ * pages
+ * </pre>
+ * Offsets are relative to the start of the section, all values
+ * little endian.
+ */
+final class GpsTrackCodec {
+	// fixes per page
+	static final int PAGE_SIZE = 4096;
+	// decoded pages kept per track, 64 KiB each
+	static final int CACHE_PAGES = 16;
+	private static final int HEADER_SIZE = 24;
+	// longest encoded fix: three varints of 64 bit
+	private static final int MAX_FIX_SIZE = 30;
+
+	private GpsTrackCodec() {
+	}
+
+	/**
+	 * Writes all fixes of track to channel at its position.
+	 * @param step quantisation in units of 1/GpsTrack.SCALE degrees
+	 */
+	static void encode(GpsTrack track, int step, FileChannel channel) throws IOException {
+		int count = track.size();
+		int pageCount = (count + PAGE_SIZE - 1) / PAGE_SIZE;
+		long start = channel.position();
+		ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + (pageCount + 1) * 8)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(PAGE_SIZE);
+		index.putInt(pageCount);
+		if (count > 0) {
+			index.putLong(track.rawTime(count - 1));
+			index.putInt((int) (quantise(track.rawLongitude(count - 1), step) * step));
+			index.putInt((int) (quantise(track.rawLatitude(count - 1), step) * step));
+		}
+		index.position(HEADER_SIZE);
+		channel.position(start + index.capacity());
+
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE * MAX_FIX_SIZE);
+		for (int page = 0; page < pageCount; page++) {
+			index.putLong(channel.position() - start);
+			long lastTime = 0;
+			long lastDelta = 0;
+			long lastLongitude = 0;
+			long lastLatitude = 0;
+			int end = Math.min(count, (page + 1) * PAGE_SIZE);
+			for (int i = page * PAGE_SIZE; i < end; i++) {
+				long time = track.rawTime(i);
+				long longitude = quantise(track.rawLongitude(i), step);
+				long latitude = quantise(track.rawLatitude(i), step);
+				long delta = time - lastTime;
+				putVarint(buf, delta - lastDelta);
+				putVarint(buf, longitude - lastLongitude);
+				putVarint(buf, latitude - lastLatitude);
+				lastTime = time;
+				lastDelta = delta;
+				lastLongitude = longitude;
+				lastLatitude = latitude;
+			}
+			buf.flip();
+			while (buf.hasRemaining())
+				channel.write(buf);
+			buf.clear();
+		}
+		long end = channel.position();
+		index.putLong(end - start);
+		index.flip();
+		while (index.hasRemaining())
+			channel.write(index, start + index.position());
+		channel.position(end);
+	}
+
+	private static long quantise(int fixed, int step) {
+		return Math.round((double) fixed / step);
+	}
+
+	private static void putVarint(ByteBuffer buf, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7fL) != 0) {
+			buf.put((byte) ((zigzag & 0x7f) | 0x80));
+			zigzag >>>= 7;
+		}
+		buf.put((byte) zigzag);
+	}
+
+	/**
+	 * Opens count encoded fixes at the start of section, e.g. a
+	 * mapped file. Only the page index is read, pages are decoded
+	 * when accessed.
+	 */
+	static Pages open(ByteBuffer section, int count, int step) throws IOException {
+		ByteBuffer buf = section.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (buf.remaining() < HEADER_SIZE)
+			throw new IOException("Truncated gps data");
+		int pageSize = buf.getInt(0);
+		int pageCount = buf.getInt(4);
+		if (pageSize <= 0 || pageCount != (count + pageSize - 1) / pageSize
+				|| buf.remaining() < HEADER_SIZE + (pageCount + 1) * 8L)
+			throw new IOException("Corrupt gps data");
+		long[] offsets = new long[pageCount + 1];
+		for (int i = 0; i <= pageCount; i++) {
+			offsets[i] = buf.getLong(HEADER_SIZE + i * 8);
+			if (offsets[i] > buf.remaining() || (i > 0 && offsets[i] < offsets[i - 1]))
+				throw new IOException("Corrupt gps data");
+		}
+		return new Pages(buf, count, step, pageSize, offsets,
+				buf.getLong(8), buf.getInt(16), buf.getInt(20));
+	}
+
+	/**
+	 * Encoded fixes, decoded a page at a time. The last decoded
+	 * pages are kept, the last fix is known without decoding.
+	 */
+	static final class Pages implements GpsTrack.Source {
+		private final ByteBuffer section;
+		private final int count;
+		private final int step;
+		private final int pageSize;
+		private final long[] offsets;
+		private final long lastTime;
+		private final int lastLongitude;
+		private final int lastLatitude;
+
+		private final LinkedHashMap<Integer, Page> cache =
+				new LinkedHashMap<Integer, Page>(CACHE_PAGES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+				return size() > CACHE_PAGES;
+			}
+		};
+		private int currentIndex = -1;
+		private Page current;
+
+		private Pages(ByteBuffer section, int count, int step, int pageSize, long[] offsets,
+				long lastTime, int lastLongitude, int lastLatitude) {
+			this.section = section;
+			this.count = count;
+			this.step = step;
+			this.pageSize = pageSize;
+			this.offsets = offsets;
+			this.lastTime = lastTime;
+			this.lastLongitude = lastLongitude;
+			this.lastLatitude = lastLatitude;
+		}
+
+		@Override
+		public long getTime(int i) {
+			if (i == count - 1)
+				return lastTime;
+			return getPage(i).times[i % pageSize];
+		}
+
+		@Override
+		public int getLongitude(int i) {
+			if (i == count - 1)
+				return lastLongitude;
+			return getPage(i).longitudes[i % pageSize];
+		}
+
+		@Override
+		public int getLatitude(int i) {
+			if (i == count - 1)
+				return lastLatitude;
+			return getPage(i).latitudes[i % pageSize];
+		}
+
+		@Override
+		public Pages copy() {
+			return new Pages(section, count, step, pageSize, offsets,
+					lastTime, lastLongitude, lastLatitude);
+		}
+
+		@Override
+		public long getHeapSize() {
+			return (long) cache.size() * pageSize * GpsTrack.RECORD_SIZE;
+		}
+
+		private Page getPage(int i) {
+			int index = i / pageSize;
+			if (index == currentIndex)
+				return current;
+			Page page = cache.get(index);
+			if (page == null) {
+				page = decode(index);
+				cache.put(index, page);
+			}
+			currentIndex = index;
+			current = page;
+			return page;
+		}
+
+		private Page decode(int index) {
+			ByteBuffer buf = section.duplicate();
+			buf.limit((int) offsets[index + 1]);
+			buf.position((int) offsets[index]);
+			int n = Math.min(pageSize, count - index * pageSize);
+			Page page = new Page(n);
+			Decoder d = new Decoder(buf, n, step);
+			for (int j = 0; d.next(); j++) {
+				page.times[j] = d.time;
+				page.longitudes[j] = (int) d.longitude;
+				page.latitudes[j] = (int) d.latitude;
+			}
+			return page;
+		}
+	}
+
+	private static final class Page {
+		final long[] times;
+		final int[] longitudes;
+		final int[] latitudes;
+
+		Page(int size) {
+			times = new long[size];
+			longitudes = new int[size];
+			latitudes = new int[size];
+		}
+	}
+
+	/**
+	 * Reads the encoded fixes of a page one by one.
+	 */
+	static final class Decoder {
+		private final ByteBuffer buf;
+		private final int step;
+		private int remaining;
+
+		private long time;
+		private long delta;
+		private long longitude;
+		private long latitude;
+
+		Decoder(ByteBuffer buf, int count, int step) {
+			this.buf = buf;
+			this.step = step;
+			remaining = count;
+		}
+
+		/**
+		 * Moves to the next fix.
+		 * @return false if there is none
+		 * @throws IllegalStateException if the data is corrupt
+		 */
+		boolean next() {
+			if (remaining == 0)
+				return false;
+			delta += getVarint();
+			time += delta;
+			longitude += getVarint() * step;
+			latitude += getVarint() * step;
+			remaining--;
+			return true;
+		}
+
+		private long getVarint() {
+			long zigzag = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (!buf.hasRemaining())
+					throw new IllegalStateException("Truncated gps data");
+				byte b = buf.get();
+				zigzag |= (long) (b & 0x7f) << shift;
+				if (b >= 0)
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			throw new IllegalStateException("Corrupt gps data");
+		}
+
+		long getTime() {
+			return time;
+		}
+
+		double getLongitude() {
+			return longitude / GpsTrack.SCALE;
+		}
+
+		double getLatitude() {
+			return latitude / GpsTrack.SCALE;
+		}
+	}
+}
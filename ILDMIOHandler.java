@@ -17,10 +17,14 @@
 package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Interface of a LocationDataManagerInputOutputHandler
  * a plugable backend the LDM.
+ * 
+ * The marker searches with a tolerance or for the nearest marker
+ * scan getAllMarkers by default, addGpsPoints calls addGpsPoint.
  */
 public interface ILDMIOHandler {
 	
@@ -42,12 +46,56 @@ public interface ILDMIOHandler {
 	 */
 	public Marker getMarker(Point2D imgpoint);
 	
+	/**
+	 * @return the marker with the realpoint closest to the
+	 * given one if it is at most tolerance meters away,
+	 * else null.
+	 */
+	public default Marker getMarker(GpsPoint realpoint, double tolerance) {
+		return MarkerIndex.findNearest(getAllMarkers(), realpoint, tolerance);
+	}
+	
+	/**
+	 * @return the marker with the imgpoint closest
+	 * to the given one or null if there are none.
+	 */
+	public default Marker getNearestMarker(Point2D imgpoint) {
+		return MarkerIndex.findNearest(getAllMarkers(), imgpoint);
+	}
+	
+	/**
+	 * @return the marker with the realpoint closest
+	 * to the given one or null if there are none.
+	 */
+	public default Marker getNearestMarker(GpsPoint realpoint) {
+		return MarkerIndex.findNearest(getAllMarkers(), realpoint, Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Sets the realpoint of m, one of the handler's markers, so
+	 * that the marker searches find it there. By default only
+	 * assigns it.
+	 */
+	public default void setMarkerRealpoint(Marker m, GpsPoint realpoint) {
+		m.realpoint = realpoint;
+	}
+	
 	/**
 	 * @return all known GpsPoints. Should not be changed.
  	 * If there is no data return empty list(not null).
 	 */
 	public ArrayList<GpsPoint> getAllGpsPoints();
 	
+	/**
+	 * @return all known GpsPoints, possibly as a read only view
+	 * that creates the points on access instead of copying them.
+	 * Only valid until the handler is changed. By default
+	 * getAllGpsPoints.
+	 */
+	public default List<GpsPoint> getGpsPoints() {
+		return getAllGpsPoints();
+	}
+	
 	/**
 	 * Removes last recent Marker equivalent to m 
 	 * @return if a occurrence of m was deleted
@@ -90,10 +138,21 @@ public interface ILDMIOHandler {
 	public void addMarker(Marker m);
 	
 	/**
-	 * Saves p.
+	 * Saves p. Handlers may store the coordinates rounded, the
+	 * track file ones to 1e-7 degrees, see GpsTrack.
 	 */
 	public void addGpsPoint(GpsPoint p);
 	
+	/**
+	 * Saves the GpsPoints given by the arrays at
+	 * offset..offset+count, in order.
+	 */
+	public default void addGpsPoints(long[] times, double[] longitudes, double[] latitudes,
+			int offset, int count) {
+		for (int i = offset; i < offset + count; i++)
+			addGpsPoint(new GpsPoint(longitudes[i], latitudes[i], times[i]));
+	}
+	
 	/**
 	 * Sets the time when the last new GpsPoint arrived
 	 */
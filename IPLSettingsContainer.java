@@ -27,6 +27,9 @@ public class IPLSettingsContainer {
 	private double badTriWeightPenalty;
 	private double maxDissimilarityPercent;
 	private boolean debugOutputEnabled;
+	// Triangles whose weight would be below this are skipped
+	private double minTriWeight = 0;
+	private TraceSink traceSink;
 	
 	public IPLSettingsContainer(double fallofExponent, double minTriAngleSize, double badTriWeightPenalty, double maxDissimilarityPercent, boolean debugOutputEnabled) {
 		setFallofExponent(fallofExponent);
@@ -35,6 +38,11 @@ public class IPLSettingsContainer {
 		setMaxDissimilarityPercent(maxDissimilarityPercent);
 		setDebugOutputEnabled(debugOutputEnabled);
 	}
+	
+	public IPLSettingsContainer(double fallofExponent, double minTriAngleSize, double badTriWeightPenalty, double maxDissimilarityPercent, boolean debugOutputEnabled, double minTriWeight) {
+		this(fallofExponent, minTriAngleSize, badTriWeightPenalty, maxDissimilarityPercent, debugOutputEnabled);
+		setMinTriWeight(minTriWeight);
+	}
 
 	public double getFallofExponent() {
 		return fallofExponent;
@@ -68,6 +76,19 @@ public class IPLSettingsContainer {
 		this.maxDissimilarityPercent = maxDissimilarityPercent;
 	}
 
+	public double getMinTriWeight() {
+		return minTriWeight;
+	}
+
+	/**
+	 * @param minTriWeight Triangles whose weight for a position is below
+	 * this are left out of the projection. If all are below it, all
+	 * are used. 0, the default, always uses all triangles.
+	 */
+	public void setMinTriWeight(double minTriWeight) {
+		this.minTriWeight = minTriWeight;
+	}
+
 	public boolean isDebugOutputEnabled() {
 		return debugOutputEnabled;
 	}
@@ -75,4 +96,20 @@ public class IPLSettingsContainer {
 	public void setDebugOutputEnabled(boolean debugOutputEnabled) {
 		this.debugOutputEnabled = debugOutputEnabled;
 	}
+
+	/**
+	 * @return the sink for debug events, null if debug output
+	 * is disabled or no sink was set
+	 */
+	public TraceSink getTraceSink() {
+		return debugOutputEnabled ? traceSink : null;
+	}
+
+	/**
+	 * @param traceSink receives debug events while debug output
+	 * is enabled, e.g. a RingBufferTraceSink
+	 */
+	public void setTraceSink(TraceSink traceSink) {
+		this.traceSink = traceSink;
+	}
 }
@@ -2,6 +2,16 @@ package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
 import java.util.List;
 
+/**
+ * Maps GpsPoints to image points based on Markers.
+ * The built in implementations are thread safe: newMarkerAdded
+ * builds a new LocatorModel and publishes it atomically, queries
+ * use whichever model is current when they start and never block.
+ * 
+ * Implementations that only provide getPointPosition and
+ * newMarkerAdded keep working through the default methods, but
+ * their model is a view of the locator instead of a snapshot.
+ */
 public interface ImagePositionLocator {
 	
 	/**
@@ -11,6 +21,44 @@ public interface ImagePositionLocator {
 	 */
 	public Point2D getPointPosition(GpsPoint currentPosition);
 
+	/**
+	 * Computes the image points to a batch of positions.
+	 * Entries without an image point are set to NaN.
+	 * Reads longitudes[offset..offset+count) and latitudes likewise,
+	 * writes xs and ys at the same indices.
+	 * By default calls getPointPosition for every position.
+	 */
+	public default void getPointPositions(double[] longitudes, double[] latitudes,
+			double[] xs, double[] ys, int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			Point2D p = getPointPosition(new GpsPoint(longitudes[i], latitudes[i], 0));
+			xs[i] = (p == null) ? Double.NaN : p.x;
+			ys[i] = (p == null) ? Double.NaN : p.y;
+		}
+	}
+
+	/**
+	 * @return snapshot of the current knowledge, e.g. for
+	 * projecting on other threads. Never null.
+	 * By default a view that calls getPointPositions on this
+	 * locator; it is not a snapshot, see LocatorModel.isSnapshot.
+	 */
+	public default LocatorModel getModel() {
+		final ImagePositionLocator locator = this;
+		return new LocatorModel() {
+			@Override
+			public void getPointPositions(double[] longitudes, double[] latitudes,
+					double[] xs, double[] ys, int offset, int count) {
+				locator.getPointPositions(longitudes, latitudes, xs, ys, offset, count);
+			}
+			
+			@Override
+			public boolean isSnapshot() {
+				return false;
+			}
+		};
+	}
+
 	/**
 	 * Add new list of markers to algorithm knowledge 
 	 */
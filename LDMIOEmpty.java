@@ -26,6 +26,7 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	
 	ArrayList<GpsPoint> gpspath = new ArrayList<GpsPoint>();
 	ArrayList<Marker> markers = new ArrayList<Marker>();
+	private MarkerIndex markerIndex;
 	long time;
 	
 	@Override
@@ -38,11 +39,7 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	 */
 	@Override
 	public Marker getMarker(Point2D imgpoint) {
-		for (Marker m : markers) {
-			if (m.imgpoint.equals(imgpoint))
-				return m;
-		}
-		return null;
+		return getMarkerIndex().get(imgpoint);
 	}
 
 	/**
@@ -50,11 +47,31 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	 */
 	@Override
 	public Marker getMarker(GpsPoint realpoint) {
-		for (Marker m : markers) {
-			if (m.realpoint.equals(realpoint))
-				return m;
-		}
-		return null;
+		return getMarkerIndex().get(realpoint);
+	}
+	
+	@Override
+	public Marker getMarker(GpsPoint realpoint, double tolerance) {
+		return getMarkerIndex().getNearest(realpoint, tolerance);
+	}
+	
+	@Override
+	public Marker getNearestMarker(Point2D imgpoint) {
+		return getMarkerIndex().getNearest(imgpoint);
+	}
+	
+	@Override
+	public Marker getNearestMarker(GpsPoint realpoint) {
+		return getMarkerIndex().getNearest(realpoint);
+	}
+	
+	/**
+	 * @return the index of the markers, built on first use
+	 */
+	private MarkerIndex getMarkerIndex() {
+		if (markerIndex == null)
+			markerIndex = new MarkerIndex(markers);
+		return markerIndex;
 	}
 	
 	/**
@@ -71,10 +88,7 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	@Override
 	public boolean removeMarker(Point2D imgpoint) {
 		Marker m = getMarker(imgpoint);
-		if (m == null)
-			return false;
-		markers.remove(m);
-		return true;
+		return m != null && removeMarker(m);
 	}
 
 	/**
@@ -83,10 +97,7 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	@Override
 	public boolean removeMarker(GpsPoint realpoint) {
 		Marker m = getMarker(realpoint);
-		if (m == null)
-			return false;
-		markers.remove(m);
-		return true;
+		return m != null && removeMarker(m);
 	}
 	
 	@Override
@@ -96,17 +107,26 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	
 	@Override
 	public GpsPoint getLastGpsPoint() {
-		return gpspath.get(gpspath.size()-1);
+		if (gpspath.size() == 0)
+			return null;
+		else
+			return gpspath.get(gpspath.size()-1);
 	}
 
 	@Override
 	public boolean removeMarker(Marker m) {
-		return markers.remove(m);
+		if (!markers.remove(m))
+			return false;
+		if (markerIndex != null)
+			markerIndex.remove(m);
+		return true;
 	}
 
 	@Override
 	public void removeAllMarkers() {
 		markers = new ArrayList<Marker>();
+		if (markerIndex != null)
+			markerIndex.clear();
 	}
 
 	@Override
@@ -122,6 +142,15 @@ public class LDMIOEmpty implements ILDMIOHandler {
 	@Override
 	public void addMarker(Marker m) {
 		markers.add(m);
+		if (markerIndex != null)
+			markerIndex.add(m);
+	}
+	
+	@Override
+	public void setMarkerRealpoint(Marker m, GpsPoint realpoint) {
+		m.realpoint = realpoint;
+		if (markerIndex != null)
+			markerIndex.update(m);
 	}
 
 	@Override
@@ -129,6 +158,14 @@ public class LDMIOEmpty implements ILDMIOHandler {
 		gpspath.add(p);
 	}
 	
+	@Override
+	public void addGpsPoints(long[] times, double[] longitudes, double[] latitudes,
+			int offset, int count) {
+		gpspath.ensureCapacity(gpspath.size() + count);
+		for (int i = offset; i < offset + count; i++)
+			gpspath.add(new GpsPoint(longitudes[i], latitudes[i], times[i]));
+	}
+	
 	@Override
 	public void setLastGpsPointTime(long unixTime) {
 		time = unixTime;
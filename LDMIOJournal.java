@@ -0,0 +1,719 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Backend for LDM that writes every change as a record to a
+ * journal instead of rewriting the .track file. Appends take
+ * constant time and survive a crash of the process; save also
+ * forces them to the disk. When enough records are written the
+ * state is folded into the .track file in the background.
+ *
+ * Journal files are named &lt;track file&gt;.journal.&lt;first sequence&gt;
+ * and hold little endian records of RECORD_SIZE bytes:
+ * <pre>
+ * long sequence, int type, int a, int b, int crc,
+ * long last gps point time, long time, long gps time,
+ * double longitude, double latitude
+ * </pre>
+ * On open the records newer than the .track file are replayed in
+ * sequence. Replay stops at a torn record or a gap in the sequence
+ * numbers. The records behind a gap are moved to
+ * &lt;journal&gt;.orphan files and not read again.
+ *
+ * If only fixes were added since the last compaction, it appends
+ * them to the uncompressed .track file in place, see
+ * LDMIOTrack.appendFixes. Otherwise, or if there is no room left,
+ * the whole track is copied and rewritten.
+ */
+public class LDMIOJournal implements ILDMIOHandler {
+	static final int RECORD_SIZE = 64;
+	// records written at once by addGpsPoints
+	private static final int BATCH_RECORDS = 256;
+	private static final String JOURNAL_SUFFIX = ".journal.";
+	private static final String ORPHAN_SUFFIX = ".orphan";
+	// records after which the journal is compacted
+	private static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+	// record types
+	private static final int ADD_GPS = 1;
+	private static final int REMOVE_GPS = 2;
+	private static final int REMOVE_ALL_GPS = 3;
+	private static final int ADD_MARKER = 4;
+	private static final int REMOVE_MARKER = 5;
+	private static final int REMOVE_ALL_MARKERS = 6;
+	private static final int SET_TIME = 7;
+	private static final int SET_MARKER_GPS = 8;
+
+	private static final byte[] ZERO_CRC = new byte[4];
+
+	private static ExecutorService compactor;
+
+	private final String filename;
+	private final LDMIOTrack track;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	private final CRC32 crc = new CRC32();
+	// orders the snapshots written by compact
+	private final Object compactionLock = new Object();
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	// journal files folded into the next snapshot, oldest first
+	private final ArrayList<File> journals = new ArrayList<File>();
+	private FileOutputStream journal;
+	private FileChannel channel;
+	private long sequence;
+	private int uncompacted;
+	private boolean isTimeDirty;
+	private boolean isCompacting;
+	// leading fixes of track that are in the .track file, -1 if
+	// one of them was removed
+	private int fileGpsCount;
+	// bounds of the fixes of track for the summary, null until the
+	// first compaction with an entry or after a removal
+	private TrackSummary.FixBounds fixBounds;
+
+	/**
+	 * Reads the .track file and replays its journals.
+	 */
+	public LDMIOJournal(String pathToFile) throws IOException {
+		this(pathToFile, null);
+	}
+
+	/**
+	 * Reads the .track file and replays its journals.
+	 * @param entry receives the summary of the track on every
+	 * compaction, null for none
+	 */
+	public LDMIOJournal(String pathToFile, TrackDBEntry entry) throws IOException {
+		filename = pathToFile;
+		track = new LDMIOTrack(pathToFile);
+		track.entry = entry;
+		sequence = track.journalSequence;
+		fileGpsCount = track.gpspath.size();
+		boolean isContiguous = true;
+		for (File f : findJournals(pathToFile)) {
+			if (isContiguous) {
+				isContiguous = replay(f);
+				journals.add(f);
+			} else if (!f.renameTo(new File(f.getPath() + ORPHAN_SUFFIX))) {
+				System.err.println("Could not rename orphaned journal " + f);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the .track file with its journals, orphaned records
+	 * and the temporary file of an unfinished save.
+	 * @return false if a file could not be deleted
+	 */
+	static boolean deleteFiles(String pathToFile) {
+		File trackfile = new File(pathToFile).getAbsoluteFile();
+		String prefix = trackfile.getName() + JOURNAL_SUFFIX;
+		boolean isDeleted = true;
+		File[] files = trackfile.getParentFile().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith(prefix) && !f.delete())
+					isDeleted = false;
+			}
+		}
+		File tmpfile = new File(pathToFile + LDMIOTrack.TMP_SUFFIX);
+		if (tmpfile.exists() && !tmpfile.delete())
+			isDeleted = false;
+		if (trackfile.exists() && !trackfile.delete())
+			isDeleted = false;
+		return isDeleted;
+	}
+	
+	/**
+	 * @return existing journal files of the track, oldest first
+	 */
+	static List<File> findJournals(String pathToFile) {
+		File trackfile = new File(pathToFile).getAbsoluteFile();
+		final String prefix = trackfile.getName() + JOURNAL_SUFFIX;
+		File[] files = trackfile.getParentFile().listFiles();
+		ArrayList<File> result = new ArrayList<File>();
+		if (files == null)
+			return result;
+		for (File f : files) {
+			if (f.getName().startsWith(prefix) && getFirstSequence(f, prefix) >= 0)
+				result.add(f);
+		}
+		File[] sorted = result.toArray(new File[result.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(getFirstSequence(a, prefix), getFirstSequence(b, prefix));
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+
+	private static long getFirstSequence(File f, String prefix) {
+		try {
+			return Long.parseLong(f.getName().substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Applies the records of f that follow sequence, up to a torn
+	 * record. The next journal has to continue the sequence.
+	 * @return false if replay stopped at a gap
+	 */
+	private boolean replay(File f) throws IOException {
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			FileChannel in = fis.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256).order(ByteOrder.LITTLE_ENDIAN);
+			while (in.read(buf) >= 0 || buf.position() > 0) {
+				buf.flip();
+				if (buf.remaining() < RECORD_SIZE)
+					break;
+				while (buf.remaining() >= RECORD_SIZE) {
+					int start = buf.position();
+					if (!isValid(buf, start)) {
+						System.err.println("Ignoring torn journal record in " + f);
+						return true;
+					}
+					long seq = buf.getLong(start);
+					if (seq > sequence + 1) {
+						System.err.println("Missing journal records " + (sequence + 1)
+								+ " to " + (seq - 1) + " before " + f);
+						orphanTail(f, in.position() - buf.remaining());
+						return false;
+					}
+					// older ones are already in the .track file
+					if (seq == sequence + 1) {
+						apply(buf, start);
+						sequence = seq;
+						uncompacted++;
+					}
+					buf.position(start + RECORD_SIZE);
+				}
+				buf.compact();
+			}
+			return true;
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Moves the records of f from position on to an orphan file,
+	 * so later records are not appended behind them.
+	 */
+	private static void orphanTail(File f, long position) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileOutputStream orphan = new FileOutputStream(f.getPath() + ORPHAN_SUFFIX);
+			try {
+				long count = channel.size() - position;
+				for (long done = 0; done < count; )
+					done += channel.transferTo(position + done, count - done, orphan.getChannel());
+			} finally {
+				orphan.close();
+			}
+			channel.truncate(position);
+		} finally {
+			file.close();
+		}
+	}
+
+	private boolean isValid(ByteBuffer buf, int start) {
+		byte[] bytes = buf.array();
+		crc.reset();
+		crc.update(bytes, start, 20);
+		crc.update(ZERO_CRC, 0, 4);
+		crc.update(bytes, start + 24, RECORD_SIZE - 24);
+		return (int) crc.getValue() == buf.getInt(start + 20);
+	}
+
+	/**
+	 * Applies a record read from a journal to track.
+	 */
+	private void apply(ByteBuffer buf, int start) {
+		int type = buf.getInt(start + 8);
+		int a = buf.getInt(start + 12);
+		int b = buf.getInt(start + 16);
+		track.time = buf.getLong(start + 24);
+		long time = buf.getLong(start + 32);
+		long gpsTime = buf.getLong(start + 40);
+		double longitude = buf.getDouble(start + 48);
+		double latitude = buf.getDouble(start + 56);
+		switch (type) {
+		case ADD_GPS:
+			track.gpspath.add(time, longitude, latitude);
+			addedFix(time, longitude, latitude);
+			break;
+		case REMOVE_GPS:
+			track.gpspath.remove(a);
+			removedFix(a);
+			break;
+		case REMOVE_ALL_GPS:
+			track.removeAllGpsPoints();
+			removedFix(0);
+			break;
+		case ADD_MARKER:
+			GpsPoint realpoint = Double.isNaN(longitude) ? null
+					: new GpsPoint(longitude, latitude, gpsTime);
+			track.addMarker(new Marker(new Point2D(a, b), time, realpoint));
+			break;
+		case REMOVE_MARKER:
+			track.removeMarkerAt(a);
+			break;
+		case REMOVE_ALL_MARKERS:
+			track.removeAllMarkers();
+			break;
+		case SET_MARKER_GPS:
+			track.setMarkerRealpointAt(a, Double.isNaN(longitude) ? null
+					: new GpsPoint(longitude, latitude, gpsTime));
+			break;
+		case SET_TIME:
+			break;
+		default:
+			System.err.println("Unknown journal record type: " + type);
+		}
+	}
+
+	private void addedFix(long time, double longitude, double latitude) {
+		if (fixBounds != null)
+			fixBounds.add(time, longitude, latitude);
+	}
+
+	/**
+	 * Called after fix i was removed, or all for i == 0.
+	 */
+	private void removedFix(int i) {
+		if (i < fileGpsCount)
+			fileGpsCount = -1;
+		fixBounds = null;
+	}
+
+	/**
+	 * Appends a record for a change that is applied to track
+	 * afterwards. If the journal cannot be written, a new one is
+	 * started and a compaction persists the change.
+	 */
+	private void append(int type, int a, int b, long time, long gpsTime,
+			double longitude, double latitude) {
+		record.clear();
+		putRecord(record, sequence + 1, type, a, b, time, gpsTime, longitude, latitude);
+		record.flip();
+		write(record, 1);
+	}
+
+	private void putRecord(ByteBuffer buf, long seq, int type, int a, int b,
+			long time, long gpsTime, double longitude, double latitude) {
+		int start = buf.position();
+		buf.putLong(seq);
+		buf.putInt(type);
+		buf.putInt(a);
+		buf.putInt(b);
+		buf.putInt(0);
+		buf.putLong(track.time);
+		buf.putLong(time);
+		buf.putLong(gpsTime);
+		buf.putDouble(longitude);
+		buf.putDouble(latitude);
+		crc.reset();
+		crc.update(buf.array(), start, RECORD_SIZE);
+		buf.putInt(start + 20, (int) crc.getValue());
+	}
+
+	/**
+	 * Writes count records numbered from sequence + 1.
+	 */
+	private void write(ByteBuffer records, int count) {
+		try {
+			if (channel == null) {
+				// an existing one can only hold a torn record
+				File f = new File(filename + JOURNAL_SUFFIX + (sequence + 1));
+				journal = new FileOutputStream(f);
+				channel = journal.getChannel();
+				if (!journals.contains(f))
+					journals.add(f);
+			}
+			while (records.hasRemaining())
+				channel.write(records);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeJournal();
+			uncompacted = compactionThreshold;
+		}
+		sequence += count;
+		isTimeDirty = false;
+		uncompacted += count;
+		if (uncompacted >= compactionThreshold)
+			startCompaction();
+	}
+
+	/**
+	 * Sets after how many records the journal is folded into
+	 * the .track file.
+	 */
+	public synchronized void setCompactionThreshold(int records) {
+		compactionThreshold = Math.max(records, 1);
+	}
+
+	private static synchronized ExecutorService getCompactor() {
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LDMIOJournal compactor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return compactor;
+	}
+
+	private void startCompaction() {
+		if (isCompacting)
+			return;
+		isCompacting = true;
+		getCompactor().execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	/**
+	 * Folds all journal records written so far into the .track
+	 * file and deletes the journals. Appends are only blocked
+	 * while the changes are copied, not while they are written.
+	 * @return false if the .track file could not be written
+	 */
+	public boolean compact() {
+		synchronized (compactionLock) {
+			return compactLocked();
+		}
+	}
+
+	/**
+	 * State taken by compactLocked while holding the lock.
+	 */
+	private static class Snapshot {
+		// fixes from gpsCount on as records, null for a full rewrite
+		ByteBuffer records;
+		int gpsCount;
+		// the whole track for a full rewrite
+		LDMIOTrack track;
+		ArrayList<Marker> markers;
+		long time;
+		long sequence;
+		// null if there is no entry
+		TrackSummary.FixBounds fixBounds;
+		List<File> folded;
+	}
+
+	private boolean compactLocked() {
+		boolean isAppendAllowed = true;
+		while (true) {
+			Snapshot snapshot = takeSnapshot(isAppendAllowed);
+			if (snapshot == null)
+				return true;
+			try {
+				if (snapshot.records != null) {
+					if (!LDMIOTrack.appendFixes(filename, snapshot.gpsCount, snapshot.records,
+							snapshot.markers, snapshot.time, snapshot.sequence)) {
+						// nothing written, fold them with a full rewrite
+						restore(snapshot);
+						isAppendAllowed = false;
+						continue;
+					}
+					if (snapshot.fixBounds != null)
+						track.entry.setSummary(TrackSummary.of(snapshot.fixBounds, snapshot.markers));
+				} else {
+					snapshot.track.write();
+				}
+				for (File f : snapshot.folded)
+					f.delete();
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				restore(snapshot);
+				return false;
+			} finally {
+				synchronized (this) {
+					isCompacting = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param isAppendAllowed false to copy the whole track
+	 * @return the state to write, null if there are no journals
+	 */
+	private synchronized Snapshot takeSnapshot(boolean isAppendAllowed) {
+		if (isTimeDirty)
+			append(SET_TIME, 0, 0, 0, 0, 0, 0);
+		if (journals.isEmpty()) {
+			isCompacting = false;
+			return null;
+		}
+		Snapshot snapshot = new Snapshot();
+		snapshot.markers = new ArrayList<Marker>(track.markers.size());
+		for (Marker m : track.markers) {
+			GpsPoint realpoint = (m.realpoint == null) ? null : new GpsPoint(
+					m.realpoint.longitude, m.realpoint.latitude, m.realpoint.time);
+			snapshot.markers.add(new Marker(new Point2D(m.imgpoint.x, m.imgpoint.y), m.time, realpoint));
+		}
+		snapshot.time = track.time;
+		snapshot.sequence = sequence;
+		if (isAppendAllowed && fileGpsCount >= 0 && track.gpsCompression == 0) {
+			snapshot.gpsCount = fileGpsCount;
+			snapshot.records = track.gpspath.getRecords(fileGpsCount);
+			if (track.entry != null) {
+				if (fixBounds == null)
+					fixBounds = TrackSummary.FixBounds.of(track.gpspath);
+				snapshot.fixBounds = fixBounds.copy();
+			}
+		} else {
+			snapshot.track = new LDMIOTrack(filename, track.gpspath.copy(), snapshot.markers,
+					track.time, sequence);
+			snapshot.track.gpsCompression = track.gpsCompression;
+			snapshot.track.entry = track.entry;
+			if (fixBounds != null)
+				snapshot.track.fixBounds = fixBounds.copy();
+		}
+		// unless a fix is removed meanwhile
+		fileGpsCount = track.gpspath.size();
+		snapshot.folded = new ArrayList<File>(journals);
+		journals.clear();
+		closeJournal();
+		uncompacted = 0;
+		isCompacting = true;
+		return snapshot;
+	}
+
+	/**
+	 * Keeps the journals of a snapshot that was not written for
+	 * the next attempt, which rewrites the whole .track file.
+	 */
+	private synchronized void restore(Snapshot snapshot) {
+		journals.addAll(0, snapshot.folded);
+		fileGpsCount = -1;
+	}
+
+	private void closeJournal() {
+		if (channel == null)
+			return;
+		try {
+			channel.force(false);
+			journal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+		journal = null;
+	}
+
+	/**
+	 * Forces the journal to the disk.
+	 */
+	@Override
+	public synchronized void save() {
+		if (isTimeDirty)
+			append(SET_TIME, 0, 0, 0, 0, 0, 0);
+		if (channel == null)
+			return;
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public ArrayList<Marker> getAllMarkers() {
+		return track.getAllMarkers();
+	}
+
+	@Override
+	public synchronized Marker getMarker(GpsPoint realpoint) {
+		return track.getMarker(realpoint);
+	}
+
+	@Override
+	public synchronized Marker getMarker(Point2D imgpoint) {
+		return track.getMarker(imgpoint);
+	}
+
+	@Override
+	public synchronized Marker getMarker(GpsPoint realpoint, double tolerance) {
+		return track.getMarker(realpoint, tolerance);
+	}
+
+	@Override
+	public synchronized Marker getNearestMarker(Point2D imgpoint) {
+		return track.getNearestMarker(imgpoint);
+	}
+
+	@Override
+	public synchronized Marker getNearestMarker(GpsPoint realpoint) {
+		return track.getNearestMarker(realpoint);
+	}
+
+	@Override
+	public ArrayList<GpsPoint> getAllGpsPoints() {
+		return track.getAllGpsPoints();
+	}
+
+	@Override
+	public List<GpsPoint> getGpsPoints() {
+		return track.getGpsPoints();
+	}
+
+	/**
+	 * @return the GpsPoints as stored, for access without creating objects
+	 */
+	public GpsTrack getGpsTrack() {
+		return track.getGpsTrack();
+	}
+
+	@Override
+	public synchronized boolean removeMarker(Marker m) {
+		int i = track.markers.indexOf(m);
+		if (i < 0)
+			return false;
+		append(REMOVE_MARKER, i, 0, 0, 0, 0, 0);
+		track.removeMarkerAt(i);
+		return true;
+	}
+
+	@Override
+	public synchronized void setMarkerRealpoint(Marker m, GpsPoint realpoint) {
+		int i = track.markers.indexOf(m);
+		if (i < 0) {
+			m.realpoint = realpoint;
+			return;
+		}
+		if (realpoint == null)
+			append(SET_MARKER_GPS, i, 0, 0, 0, Double.NaN, Double.NaN);
+		else
+			append(SET_MARKER_GPS, i, 0, 0, realpoint.time, realpoint.longitude, realpoint.latitude);
+		track.setMarkerRealpointAt(i, realpoint);
+	}
+
+	@Override
+	public synchronized void removeAllMarkers() {
+		append(REMOVE_ALL_MARKERS, 0, 0, 0, 0, 0, 0);
+		track.removeAllMarkers();
+	}
+
+	@Override
+	public synchronized boolean removeMarker(Point2D imgpoint) {
+		Marker m = getMarker(imgpoint);
+		return m != null && removeMarker(m);
+	}
+
+	@Override
+	public synchronized boolean removeMarker(GpsPoint realpoint) {
+		Marker m = getMarker(realpoint);
+		return m != null && removeMarker(m);
+	}
+
+	@Override
+	public synchronized boolean removeGpsPoint(GpsPoint p) {
+		int i = track.gpspath.lastIndexOf(p);
+		if (i < 0)
+			return false;
+		append(REMOVE_GPS, i, 0, 0, 0, 0, 0);
+		track.gpspath.remove(i);
+		removedFix(i);
+		return true;
+	}
+
+	@Override
+	public synchronized void removeAllGpsPoints() {
+		append(REMOVE_ALL_GPS, 0, 0, 0, 0, 0, 0);
+		track.removeAllGpsPoints();
+		removedFix(0);
+	}
+
+	@Override
+	public synchronized void addMarker(Marker m) {
+		if (m.realpoint == null)
+			append(ADD_MARKER, m.imgpoint.x, m.imgpoint.y, m.time, 0, Double.NaN, Double.NaN);
+		else
+			append(ADD_MARKER, m.imgpoint.x, m.imgpoint.y, m.time, m.realpoint.time,
+					m.realpoint.longitude, m.realpoint.latitude);
+		track.addMarker(m);
+	}
+
+	@Override
+	public synchronized void addGpsPoint(GpsPoint p) {
+		append(ADD_GPS, 0, 0, p.time, 0, p.longitude, p.latitude);
+		track.addGpsPoint(p);
+		addedFix(p.time, p.longitude, p.latitude);
+	}
+
+	@Override
+	public synchronized void addGpsPoints(long[] times, double[] longitudes, double[] latitudes,
+			int offset, int count) {
+		ByteBuffer batch = ByteBuffer.allocate(Math.min(count, BATCH_RECORDS) * RECORD_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = offset; i < offset + count; ) {
+			int n = Math.min(offset + count - i, BATCH_RECORDS);
+			batch.clear();
+			for (int j = 0; j < n; j++, i++)
+				putRecord(batch, sequence + 1 + j, ADD_GPS, 0, 0, times[i], 0,
+						longitudes[i], latitudes[i]);
+			batch.flip();
+			write(batch, n);
+		}
+		track.addGpsPoints(times, longitudes, latitudes, offset, count);
+		for (int i = offset; i < offset + count; i++)
+			addedFix(times[i], longitudes[i], latitudes[i]);
+	}
+
+	/**
+	 * Written with the next record or by save.
+	 */
+	@Override
+	public synchronized void setLastGpsPointTime(long unixTime) {
+		if (track.time != unixTime) {
+			track.time = unixTime;
+			isTimeDirty = true;
+		}
+	}
+
+	@Override
+	public long getLastGpsPointTime() {
+		return track.getLastGpsPointTime();
+	}
+
+	@Override
+	public Marker getLastMarker() {
+		return track.getLastMarker();
+	}
+
+	@Override
+	public GpsPoint getLastGpsPoint() {
+		return track.getLastGpsPoint();
+	}
+}
@@ -21,24 +21,80 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main backend for LDM. 
  * Does not provide realtime saving.
  * Saves only when save is called.
+ * 
+ * Version 4 .track files are little endian:
+ * <pre>
+ * header   int magic, int version, int header size,
+ *          int marker count, int gps count, int gps encoding,
+ *          long last gps point time, long marker offset,
+ *          long gps offset, long journal sequence,
+ *          8 reserved bytes
+ * markers  int x, int y, long time, long gps time,
+ *          double longitude, double latitude
+ * gps      encoding 0: see GpsTrack.RECORD_SIZE
+ *          encoding n: GpsTrackCodec with step n
+ * </pre>
+ * The gps section is mapped and read on access, a compressed one
+ * a page at a time. Markers, the fix count, the last fix and the
+ * last gps point time never touch the gps data. Version 3
+ * files (serialized objects) are still read and written as
+ * version 4 on the next save.
+ * 
+ * Gps coordinates are stored rounded to 1e-7 degrees (about 1 cm),
+ * see GpsTrack, from the moment they are added, not only in the
+ * file. Marker coordinates keep full double precision. Version 3
+ * files kept gps fixes as doubles, so loading one rounds its fixes
+ * and the upgrade on save cannot be undone. Keep a copy of version
+ * 3 files whose fixes are needed in full precision.
  */
 public class LDMIOTrack implements ILDMIOHandler {
+	private static final int MAGIC = 0x4b525454; // "TTRK"
+	private static final int HEADER_SIZE = 64;
+	private static final int MARKER_RECORD_SIZE = 40;
+	// approximate heap use of a Marker with its points
+	private static final int MARKER_HEAP_SIZE = 120;
+	// appendFixes leaves room for 1/GPS_RESERVE more fixes
+	private static final int GPS_RESERVE = 4;
+	// save writes here first
+	static final String TMP_SUFFIX = ".tmp";
+	
 	String filename;
 	
 	//Denotes the highest supported .track version
-	int protVersionNumber = 3;
+	int protVersionNumber = 4;
 	
-	ArrayList<GpsPoint> gpspath;
+	GpsTrack gpspath;
 	ArrayList<Marker> markers;
 	long time;
+	// last LDMIOJournal record contained in this file
+	long journalSequence;
+	// 0 or the GpsTrackCodec step the gps section is written with
+	int gpsCompression;
+	// changed since the last save
+	boolean isModified;
+	// receives the summary on save, null for none
+	TrackDBEntry entry;
+	// bounds of gpspath for the summary, null until a save needs
+	// them or after a fix was removed
+	TrackSummary.FixBounds fixBounds;
+	// null until a marker is looked up
+	private MarkerIndex markerIndex;
 	
 	/**
 	 * Reads track format.
@@ -49,7 +105,10 @@ public class LDMIOTrack implements ILDMIOHandler {
 		try {
 			switch (protVersionNumber) {
 			case 3:
-				gpspath = (ArrayList<GpsPoint>) ois.readObject();
+				ArrayList<GpsPoint> points = (ArrayList<GpsPoint>) ois.readObject();
+				gpspath = new GpsTrack(points.size());
+				for (GpsPoint p : points)
+					gpspath.add(p);
 				markers = (ArrayList<Marker>) ois.readObject();
 				break;
 			default:
@@ -65,6 +124,96 @@ public class LDMIOTrack implements ILDMIOHandler {
 		return true;
 	}
 	
+	/**
+	 * Reads track format version 4.
+	 * Maps the gps section instead of reading it.
+	 * @throws IOException if the file is truncated or corrupt
+	 */
+	private void readTrackFile(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+		if (header == null)
+			throw new IOException("Truncated track file: " + filename);
+		protVersionNumber = header.getInt(4);
+		if (protVersionNumber != 4)
+			throw new IOException("Unknown file version number: " + protVersionNumber
+					+ " in track file: " + filename);
+		int markerCount = header.getInt(12);
+		int gpsCount = header.getInt(16);
+		int gpsEncoding = header.getInt(20);
+		long gpsRecordsSize = (gpsEncoding == 0) ? (long) gpsCount * GpsTrack.RECORD_SIZE : 0;
+		long markerOffset = header.getLong(32);
+		long gpsOffset = header.getLong(40);
+		if (markerCount < 0 || gpsCount < 0
+				|| markerOffset < header.getInt(8)
+				|| markerOffset + (long) markerCount * MARKER_RECORD_SIZE > fileSize
+				|| gpsOffset < 0
+				|| gpsEncoding < 0
+				|| gpsOffset + gpsRecordsSize > fileSize)
+			throw new IOException("Corrupt track file: " + filename);
+		
+		time = header.getLong(24);
+		journalSequence = header.getLong(48);
+		ByteBuffer buf = readFully(channel, markerOffset, markerCount * MARKER_RECORD_SIZE);
+		if (buf == null)
+			throw new IOException("Truncated track file: " + filename);
+		markers = new ArrayList<Marker>(markerCount);
+		for (int i = 0; i < markerCount; i++) {
+			Point2D imgpoint = new Point2D(buf.getInt(), buf.getInt());
+			long markerTime = buf.getLong();
+			long gpsTime = buf.getLong();
+			double longitude = buf.getDouble();
+			double latitude = buf.getDouble();
+			GpsPoint realpoint = Double.isNaN(longitude) ? null
+					: new GpsPoint(longitude, latitude, gpsTime);
+			markers.add(new Marker(imgpoint, markerTime, realpoint));
+		}
+		
+		gpsCompression = gpsEncoding;
+		if (gpsEncoding == 0) {
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+					gpsOffset, gpsRecordsSize);
+			gpspath = GpsTrack.map(records, gpsCount);
+		} else {
+			MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY,
+					gpsOffset, fileSize - gpsOffset);
+			gpspath = GpsTrack.map(GpsTrackCodec.open(section, gpsCount, gpsEncoding), gpsCount);
+		}
+	}
+	
+	/**
+	 * @return little endian buffer with length bytes from position,
+	 * null if the file is shorter
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position, int length)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0)
+				return null;
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * Creates a track for pathToFile with the given data
+	 * without reading the file.
+	 */
+	LDMIOTrack(String pathToFile, GpsTrack gpspath, ArrayList<Marker> markers,
+			long time, long journalSequence) {
+		filename = pathToFile;
+		this.gpspath = gpspath;
+		this.markers = markers;
+		this.time = time;
+		this.journalSequence = journalSequence;
+	}
+	
+	/**
+	 * Loads pathToFile, or starts an empty track if there is none.
+	 * @throws IOException if the file cannot be read, is truncated
+	 * or corrupt
+	 */
 	public LDMIOTrack(String pathToFile) throws IOException {
 		filename = pathToFile;
 		File dbgTrackfile = new File(pathToFile);
@@ -72,13 +221,22 @@ public class LDMIOTrack implements ILDMIOHandler {
 		
 		if (isFileValid) {
 			FileInputStream fis = new FileInputStream(dbgTrackfile);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			readTrackFile(ois);
-			ois.close();
-			fis.close();
+			try {
+				FileChannel channel = fis.getChannel();
+				ByteBuffer magic = readFully(channel, 0, 4);
+				if (magic != null && magic.getInt(0) == MAGIC) {
+					readTrackFile(channel);
+				} else {
+					ObjectInputStream ois = new ObjectInputStream(fis);
+					readTrackFile(ois);
+					ois.close();
+				}
+			} finally {
+				fis.close();
+			}
 		}
 		if (!isFileValid || gpspath == null || markers == null) {
-			gpspath = new ArrayList<GpsPoint>();
+			gpspath = new GpsTrack();
 			markers = new ArrayList<Marker>();
 		}
 	}
@@ -90,20 +248,36 @@ public class LDMIOTrack implements ILDMIOHandler {
 
 	@Override
 	public Marker getMarker(Point2D imgpoint) {
-		for (Marker m : markers) {
-			if (m.imgpoint.equals(imgpoint))
-				return m;
-		}
-		return null;
+		return getMarkerIndex().get(imgpoint);
 	}
 
 	@Override
 	public Marker getMarker(GpsPoint realpoint) {
-		for (Marker m : markers) {
-			if (m.realpoint.equals(realpoint))
-				return m;
-		}
-		return null;
+		return getMarkerIndex().get(realpoint);
+	}
+	
+	@Override
+	public Marker getMarker(GpsPoint realpoint, double tolerance) {
+		return getMarkerIndex().getNearest(realpoint, tolerance);
+	}
+	
+	@Override
+	public Marker getNearestMarker(Point2D imgpoint) {
+		return getMarkerIndex().getNearest(imgpoint);
+	}
+	
+	@Override
+	public Marker getNearestMarker(GpsPoint realpoint) {
+		return getMarkerIndex().getNearest(realpoint);
+	}
+	
+	/**
+	 * @return the index of the markers, built on first use
+	 */
+	private MarkerIndex getMarkerIndex() {
+		if (markerIndex == null)
+			markerIndex = new MarkerIndex(markers);
+		return markerIndex;
 	}
 	
 	@Override
@@ -119,8 +293,7 @@ public class LDMIOTrack implements ILDMIOHandler {
 		Marker m = getMarker(imgpoint);
 		if (m == null)
 			return false;
-		markers.remove(m);
-		return true;
+		return removeMarker(m);
 	}
 
 	@Override
@@ -128,12 +301,27 @@ public class LDMIOTrack implements ILDMIOHandler {
 		Marker m = getMarker(realpoint);
 		if (m == null)
 			return false;
-		markers.remove(m);
-		return true;
+		return removeMarker(m);
 	}
 	
+	/**
+	 * @return copy of the GpsTrack, see getGpsTrack() for
+	 * access without creating objects
+	 */
 	@Override
 	public ArrayList<GpsPoint> getAllGpsPoints() {
+		return new ArrayList<GpsPoint>(gpspath.asList());
+	}
+	
+	@Override
+	public List<GpsPoint> getGpsPoints() {
+		return gpspath.asList();
+	}
+	
+	/**
+	 * @return the GpsPoints as stored, for access without creating objects
+	 */
+	public GpsTrack getGpsTrack() {
 		return gpspath;
 	}
 	
@@ -147,37 +335,125 @@ public class LDMIOTrack implements ILDMIOHandler {
 
 	@Override
 	public boolean removeMarker(Marker m) {
-		return markers.remove(m);
+		int i = markers.indexOf(m);
+		if (i < 0)
+			return false;
+		removeMarkerAt(i);
+		return true;
+	}
+	
+	/**
+	 * Removes the i-th marker.
+	 */
+	void removeMarkerAt(int i) {
+		Marker m = markers.remove(i);
+		if (markerIndex != null)
+			markerIndex.remove(m);
+		isModified = true;
 	}
 
 	@Override
 	public void removeAllMarkers() {
 		markers = new ArrayList<Marker>();
+		if (markerIndex != null)
+			markerIndex.clear();
+		isModified = true;
 	}
 
 	@Override
 	public boolean removeGpsPoint(GpsPoint p) {
-		return gpspath.remove(p);
+		int i = gpspath.lastIndexOf(p);
+		if (i < 0)
+			return false;
+		gpspath.remove(i);
+		fixBounds = null;
+		isModified = true;
+		return true;
 	}
 
 	@Override
 	public void removeAllGpsPoints() {
-		gpspath = new ArrayList<GpsPoint>();
+		gpspath = new GpsTrack();
+		fixBounds = new TrackSummary.FixBounds();
+		isModified = true;
 	}
 
 	@Override
 	public void addMarker(Marker m) {
 		markers.add(m);
+		if (markerIndex != null)
+			markerIndex.add(m);
+		isModified = true;
+	}
+	
+	@Override
+	public void setMarkerRealpoint(Marker m, GpsPoint realpoint) {
+		int i = markers.indexOf(m);
+		if (i < 0)
+			m.realpoint = realpoint;
+		else
+			setMarkerRealpointAt(i, realpoint);
+	}
+	
+	/**
+	 * Sets the realpoint of the i-th marker.
+	 */
+	void setMarkerRealpointAt(int i, GpsPoint realpoint) {
+		Marker m = markers.get(i);
+		m.realpoint = realpoint;
+		if (markerIndex != null)
+			markerIndex.update(m);
+		isModified = true;
 	}
 
 	@Override
 	public void addGpsPoint(GpsPoint p) {
 		gpspath.add(p);
+		addFixBounds(gpspath.size() - 1);
+		isModified = true;
+	}
+	
+	@Override
+	public void addGpsPoints(long[] times, double[] longitudes, double[] latitudes,
+			int offset, int count) {
+		gpspath.addAll(times, longitudes, latitudes, offset, count);
+		addFixBounds(gpspath.size() - count);
+		if (count > 0)
+			isModified = true;
+	}
+	
+	/**
+	 * Extends fixBounds by the fixes from index from on, with the
+	 * stored coordinates.
+	 */
+	private void addFixBounds(int from) {
+		if (fixBounds == null)
+			return;
+		for (int i = from; i < gpspath.size(); i++)
+			fixBounds.add(gpspath.getTime(i), gpspath.getLongitude(i), gpspath.getLatitude(i));
 	}
 	
 	@Override
 	public void setLastGpsPointTime(long unixTime) {
-		time = unixTime;
+		if (time != unixTime) {
+			time = unixTime;
+			isModified = true;
+		}
+	}
+	
+	/**
+	 * @return if there are changes since the file was read or saved
+	 */
+	public boolean isModified() {
+		return isModified;
+	}
+	
+	/**
+	 * @return approximate bytes of track data kept on the heap.
+	 * Mapped file data is not counted.
+	 */
+	public long getHeapSize() {
+		return gpspath.getHeapSize() + (long) markers.size() * MARKER_HEAP_SIZE;
 	}
 
 	@Override
@@ -193,8 +469,9 @@ public class LDMIOTrack implements ILDMIOHandler {
 	 */
 	public void printValuesAsCSV(PrintStream ps) {
 		ps.println("type,name,latitude,longitude");
-		for (GpsPoint p : getAllGpsPoints())
-			ps.println("P, " + p.time + ", " + p.latitude + ", " + p.longitude);
+		GpsTrack.Cursor p = gpspath.cursor();
+		while (p.next())
+			ps.println("P, " + p.getTime() + ", " + p.getLatitude() + ", " + p.getLongitude());
 		ps.println("name,name2,latitude,longitude");
 		for (Marker m : getAllMarkers())
 			ps.println(m.imgpoint.x + ", " + m.imgpoint.y + ", "
@@ -202,26 +479,197 @@ public class LDMIOTrack implements ILDMIOHandler {
 	}
 	
 	/**
-	 * Writes into track format.
+	 * @return version of the loaded file, or the one save writes
+	 * if there was none. Files older than 4 are upgraded by save,
+	 * which rounds their gps coordinates to 1e-7 degrees.
+	 */
+	public int getFileVersion() {
+		return protVersionNumber;
+	}
+	
+	/**
+	 * Sets how save writes the gps section. Compressed tracks
+	 * take about a third of the space but have to be decoded.
+	 * @param step 0 for uncompressed, otherwise the quantisation
+	 * of the coordinates in units of 1e-7 degrees
+	 */
+	public void setGpsCompression(int step) {
+		if (step < 0)
+			throw new IllegalArgumentException("Negative quantisation step: " + step);
+		if (gpsCompression != step)
+			isModified = true;
+		gpsCompression = step;
+	}
+	
+	/**
+	 * Writes into track format version 4.
 	 */
-	private void writeTrackFile(ObjectOutputStream oos) throws IOException {
-		oos.writeInt(protVersionNumber);
-		oos.writeObject(gpspath);
-		oos.writeObject(markers);
-		oos.writeLong(time);
+	private void writeTrackFile(FileChannel channel) throws IOException {
+		long markerOffset = HEADER_SIZE;
+		long gpsOffset = markerOffset + (long) markers.size() * MARKER_RECORD_SIZE;
+		ByteBuffer buf = ByteBuffer.allocate((int) gpsOffset).order(ByteOrder.LITTLE_ENDIAN);
+		putHeader(buf, markers.size(), gpspath.size(), gpsCompression, time,
+				markerOffset, gpsOffset, journalSequence);
+		putMarkers(buf, markers);
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		if (gpsCompression == 0)
+			gpspath.writeRecords(channel);
+		else
+			GpsTrackCodec.encode(gpspath, gpsCompression, channel);
 	}
 	
+	private static void putHeader(ByteBuffer buf, int markerCount, int gpsCount,
+			int gpsEncoding, long time, long markerOffset, long gpsOffset,
+			long journalSequence) {
+		int start = buf.position();
+		buf.putInt(MAGIC);
+		buf.putInt(4);
+		buf.putInt(HEADER_SIZE);
+		buf.putInt(markerCount);
+		buf.putInt(gpsCount);
+		buf.putInt(gpsEncoding);
+		buf.putLong(time);
+		buf.putLong(markerOffset);
+		buf.putLong(gpsOffset);
+		buf.putLong(journalSequence);
+		buf.position(start + HEADER_SIZE);
+	}
+	
+	private static void putMarkers(ByteBuffer buf, List<Marker> markers) {
+		for (Marker m : markers) {
+			buf.putInt(m.imgpoint.x);
+			buf.putInt(m.imgpoint.y);
+			buf.putLong(m.time);
+			if (m.realpoint == null) {
+				buf.putLong(0);
+				buf.putDouble(Double.NaN);
+				buf.putDouble(Double.NaN);
+			} else {
+				buf.putLong(m.realpoint.time);
+				buf.putDouble(m.realpoint.longitude);
+				buf.putDouble(m.realpoint.latitude);
+			}
+		}
+	}
+	
+	/**
+	 * Appends fixes to the gps section of an uncompressed version 4
+	 * file in place, writes the markers behind them and then the
+	 * header, so the cost does not depend on the length of the track.
+	 * Neither the old fixes nor the old markers are overwritten and
+	 * the header is a single write at the start of the file, so a
+	 * crash leaves either the old or the new state. Mapped gps data
+	 * of the file stays valid. Room for more fixes is left before
+	 * the markers, once it is used up the file has to be rewritten.
+	 * @param gpsCount fixes the file has to hold
+	 * @param records the new fixes, see GpsTrack.getRecords
+	 * @return false if the file is not an uncompressed version 4
+	 * file with gpsCount fixes or has no room, it is unchanged then
+	 */
+	static boolean appendFixes(String filename, int gpsCount, ByteBuffer records,
+			List<Marker> markers, long time, long journalSequence) throws IOException {
+		File trackfile = new File(filename);
+		if (!trackfile.isFile())
+			return false;
+		RandomAccessFile file = new RandomAccessFile(trackfile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+			if (header == null || header.getInt(0) != MAGIC || header.getInt(4) != 4
+					|| header.getInt(16) != gpsCount || header.getInt(20) != 0)
+				return false;
+			int markerCount = header.getInt(12);
+			long markerOffset = header.getLong(32);
+			long gpsOffset = header.getLong(40);
+			long markerEnd = markerOffset + (long) markerCount * MARKER_RECORD_SIZE;
+			long gpsEnd = gpsOffset + (long) gpsCount * GpsTrack.RECORD_SIZE;
+			long newGpsEnd = gpsEnd + records.remaining();
+			// markers behind the fixes limit the room
+			if (markerEnd > gpsOffset && newGpsEnd > markerOffset)
+				return false;
+			
+			int newCount = gpsCount + records.remaining() / GpsTrack.RECORD_SIZE;
+			long newMarkerOffset = Math.max(markerEnd,
+					newGpsEnd + (long) (newCount / GPS_RESERVE) * GpsTrack.RECORD_SIZE);
+			ByteBuffer buf = ByteBuffer.allocate(markers.size() * MARKER_RECORD_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			putMarkers(buf, markers);
+			buf.flip();
+			// no markers would leave the offset behind the end
+			if (file.length() < newMarkerOffset)
+				file.setLength(newMarkerOffset);
+			writeFully(channel, records, gpsEnd);
+			writeFully(channel, buf, newMarkerOffset);
+			channel.force(true);
+			
+			header.clear();
+			putHeader(header, markers.size(), newCount, 0, time,
+					newMarkerOffset, gpsOffset, journalSequence);
+			header.flip();
+			writeFully(channel, header, 0);
+			channel.force(true);
+			return true;
+		} finally {
+			file.close();
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+			throws IOException {
+		long start = position - buf.position();
+		while (buf.hasRemaining())
+			channel.write(buf, start + buf.position());
+	}
+	
+	/**
+	 * Writes a temporary file and renames it over the
+	 * track file, so a failed save keeps the old one.
+	 * Mapped gps data of the old file stays valid.
+	 */
 	@Override
 	public void save() {
-		File dbgTrackfile = new File(filename);
 		try {
-			FileOutputStream fis = new FileOutputStream(dbgTrackfile);
-			ObjectOutputStream oos = new ObjectOutputStream(fis);
-			writeTrackFile(oos);
-			oos.close();
-			fis.close();
+			write();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Like save, but reports failures.
+	 */
+	void write() throws IOException {
+		File dbgTrackfile = new File(filename);
+		File tmpfile = new File(filename + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmpfile);
+		try {
+			writeTrackFile(fos.getChannel());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		replaceFile(tmpfile, dbgTrackfile);
+		protVersionNumber = 4;
+		isModified = false;
+		if (entry != null) {
+			if (fixBounds == null)
+				fixBounds = TrackSummary.FixBounds.of(gpspath);
+			entry.setSummary(TrackSummary.of(fixBounds, markers));
+		}
+	}
+	
+	/**
+	 * Replaces target by source in one step, so the old or the new
+	 * file is there at any time. Falls back to a replacing move on
+	 * file systems without atomic moves.
+	 */
+	static void replaceFile(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
 }
@@ -0,0 +1,400 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the LDMIOTrack handlers of a TrackDB open. Limited by
+ * entry count and by the heap size of the handlers; the least
+ * recently used ones are saved if modified and dropped.
+ * Concurrent requests for the same track share one load.
+ * 
+ * Handlers are not thread safe, so a handler is used by one
+ * thread at a time: acquire pins it to the calling thread until
+ * the matching release, other threads wait meanwhile. Pinned
+ * handlers are neither evicted nor saved by the cache. A handler
+ * stays in the cache while it is written back, so it cannot be
+ * loaded again before it is saved.
+ * Thread safe.
+ */
+public class LDMIOTrackCache {
+	private static final int DEFAULT_MAX_ENTRIES = 8;
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private final LinkedHashMap<Long, Slot> slots =
+			new LinkedHashMap<Long, Slot>(16, 0.75f, true);
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	// heap size of the loaded handlers when last used
+	private long bytes;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	private static final class Slot {
+		final long identifier;
+		final FutureTask<LDMIOTrack> load;
+		long bytes;
+		// thread the handler is pinned to, null if none
+		Thread owner;
+		// nested pins of owner
+		int pins;
+		// saved before it is removed, pinned to the saving thread
+		boolean isEvicting;
+
+		Slot(long identifier, FutureTask<LDMIOTrack> load) {
+			this.identifier = identifier;
+			this.load = load;
+		}
+
+		boolean isAvailableTo(Thread t) {
+			return !isEvicting && (owner == null || owner == t);
+		}
+	}
+
+	/**
+	 * @return the open handler of the track file pinned to the
+	 * calling thread, loading it if needed. Waits while another
+	 * thread has it pinned. Calls may be nested, every one needs
+	 * a release.
+	 */
+	LDMIOTrack acquire(final TrackDBEntry map, final String pathToFile) throws IOException {
+		long identifier = map.getIdentifier();
+		Thread current = Thread.currentThread();
+		Slot slot;
+		boolean isLoader = false;
+		synchronized (this) {
+			slot = waitForSlot(identifier, current);
+			if (slot == null) {
+				slot = new Slot(identifier, newLoad(map, pathToFile));
+				slots.put(identifier, slot);
+				missCount++;
+				isLoader = true;
+			} else {
+				hitCount++;
+			}
+			slot.owner = current;
+			slot.pins++;
+		}
+		if (isLoader)
+			slot.load.run();
+
+		LDMIOTrack track;
+		try {
+			track = getLoaded(slot);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (slots.get(identifier) == slot) {
+					slots.remove(identifier);
+					notifyAll();
+				}
+			}
+			throw e;
+		}
+		List<Slot> evicted;
+		synchronized (this) {
+			evicted = evict(null);
+		}
+		writeBack(evicted);
+		return track;
+	}
+
+	/**
+	 * Unpins a handler of the calling thread from acquire.
+	 */
+	void release(long identifier) {
+		List<Slot> evicted;
+		synchronized (this) {
+			Slot slot = slots.get(identifier);
+			// removed by remove meanwhile
+			if (slot == null)
+				return;
+			if (slot.owner != Thread.currentThread() || slot.isEvicting)
+				throw new IllegalStateException("release without acquire");
+			if (--slot.pins > 0)
+				return;
+			unpin(slot);
+			evicted = evict(null);
+		}
+		writeBack(evicted);
+	}
+
+	/**
+	 * @return a handler of the track file for the calling thread
+	 * alone, not kept by the cache. An open handler is handed over,
+	 * otherwise the file is read. Waits while another thread has
+	 * it pinned. Counts as a hit or a miss like acquire.
+	 */
+	LDMIOTrack take(TrackDBEntry map, String pathToFile) throws IOException {
+		long identifier = map.getIdentifier();
+		synchronized (this) {
+			Slot slot = waitForSlot(identifier, Thread.currentThread());
+			if (slot != null) {
+				if (slot.owner != null)
+					throw new IllegalStateException("Track is acquired by this thread");
+				slots.remove(identifier);
+				bytes -= slot.bytes;
+				notifyAll();
+				try {
+					LDMIOTrack track = slot.load.get();
+					hitCount++;
+					return track;
+				} catch (InterruptedException e) {
+					// done, does not wait
+				} catch (ExecutionException e) {
+					// failed loads are removed by their loader
+				}
+			}
+			missCount++;
+		}
+		return load(map, pathToFile);
+	}
+
+	/**
+	 * Waits until the slot of identifier is available to t,
+	 * the cache's lock must be held.
+	 * @return the slot or null if there is none
+	 */
+	private Slot waitForSlot(long identifier, Thread t) {
+		boolean isInterrupted = false;
+		try {
+			while (true) {
+				Slot slot = slots.get(identifier);
+				if (slot == null || slot.isAvailableTo(t))
+					return slot;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+		} finally {
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static FutureTask<LDMIOTrack> newLoad(final TrackDBEntry map, final String pathToFile) {
+		return new FutureTask<LDMIOTrack>(new Callable<LDMIOTrack>() {
+			@Override
+			public LDMIOTrack call() throws IOException {
+				return load(map, pathToFile);
+			}
+		});
+	}
+
+	private static LDMIOTrack load(TrackDBEntry map, String pathToFile) throws IOException {
+		LDMIOTrack track = new LDMIOTrack(pathToFile);
+		track.entry = map;
+		return track;
+	}
+
+	/**
+	 * Clears the pin of a slot and updates its size, the
+	 * cache's lock must be held.
+	 */
+	private void unpin(Slot slot) {
+		slot.owner = null;
+		slot.pins = 0;
+		if (slot.load.isDone() && slots.get(slot.identifier) == slot) {
+			try {
+				long size = slot.load.get().getHeapSize();
+				bytes += size - slot.bytes;
+				slot.bytes = size;
+			} catch (InterruptedException e) {
+				// done, does not wait
+			} catch (ExecutionException e) {
+				// failed loads are removed by their loader
+			}
+		}
+		notifyAll();
+	}
+
+	private static LDMIOTrack getLoaded(Slot slot) throws IOException {
+		boolean isInterrupted = false;
+		try {
+			while (true) {
+				try {
+					return slot.load.get();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Removes least recently used unpinned handlers over the limits,
+	 * the cache's lock must be held. Modified ones stay in the
+	 * cache, pinned for writeBack.
+	 * @return the handlers to write back
+	 */
+	private List<Slot> evict(Slot keep) {
+		List<Slot> evicted = new ArrayList<Slot>();
+		int count = slots.size();
+		long size = bytes;
+		Iterator<Slot> it = slots.values().iterator();
+		while ((count > maxEntries || (size > maxBytes && count > 1)) && it.hasNext()) {
+			Slot slot = it.next();
+			if (slot == keep || slot.owner != null || slot.isEvicting || !slot.load.isDone())
+				continue;
+			LDMIOTrack track;
+			try {
+				track = slot.load.get();
+			} catch (InterruptedException e) {
+				// done, does not wait
+				continue;
+			} catch (ExecutionException e) {
+				// failed loads are removed by their loader
+				continue;
+			}
+			count--;
+			size -= slot.bytes;
+			evictionCount++;
+			if (track.isModified()) {
+				slot.isEvicting = true;
+				slot.owner = Thread.currentThread();
+				evicted.add(slot);
+			} else {
+				it.remove();
+				bytes -= slot.bytes;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Saves the handlers from evict and then removes them.
+	 */
+	private void writeBack(List<Slot> evicted) {
+		for (Slot slot : evicted) {
+			try {
+				slot.load.get().save();
+			} catch (InterruptedException e) {
+				// done, does not wait
+			} catch (ExecutionException e) {
+				// failed loads are never evicted
+			} finally {
+				synchronized (this) {
+					if (slots.get(slot.identifier) == slot) {
+						slots.remove(slot.identifier);
+						bytes -= slot.bytes;
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the handler of the track without saving it.
+	 */
+	synchronized void remove(long identifier) {
+		Slot slot = slots.remove(identifier);
+		if (slot != null) {
+			bytes -= slot.bytes;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Saves all modified handlers that are not pinned.
+	 */
+	public void flush() {
+		List<Slot> saved = new ArrayList<Slot>();
+		Thread current = Thread.currentThread();
+		synchronized (this) {
+			for (Slot slot : slots.values()) {
+				if (slot.owner == null && !slot.isEvicting && slot.load.isDone()) {
+					slot.owner = current;
+					slot.pins = 1;
+					saved.add(slot);
+				}
+			}
+		}
+		for (Slot slot : saved) {
+			try {
+				LDMIOTrack track = slot.load.get();
+				if (track.isModified())
+					track.save();
+			} catch (InterruptedException e) {
+				// done, does not wait
+			} catch (ExecutionException e) {
+				// failed loads are removed by their loader
+			} finally {
+				synchronized (this) {
+					unpin(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the limits and evicts handlers over them.
+	 * @param maxEntries number of open handlers, at least 1
+	 * @param maxBytes heap size of the open handlers, see
+	 * LDMIOTrack.getHeapSize. Pinned handlers are kept
+	 * even if they are over the limits.
+	 */
+	public void setLimits(int maxEntries, long maxBytes) {
+		List<Slot> evicted;
+		synchronized (this) {
+			this.maxEntries = Math.max(maxEntries, 1);
+			this.maxBytes = maxBytes;
+			evicted = evict(null);
+		}
+		writeBack(evicted);
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	/**
+	 * @return heap size of the open handlers when they were last used
+	 */
+	public synchronized long getHeapSize() {
+		return bytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LDMIOTrackCache: " + slots.size() + " handlers, " + bytes + " bytes, "
+				+ hitCount + " hits, " + missCount + " misses, "
+				+ evictionCount + " evictions";
+	}
+}
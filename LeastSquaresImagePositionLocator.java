@@ -21,100 +21,320 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class LeastSquaresImagePositionLocator implements ImagePositionLocator {
-	private List<Marker> markers;
+	// the fit needs at least 3 markers, no matter the search mode
+	private static final int MIN_FIT_MARKERS = 3;
+
+	// Replaced as a whole by the synchronized setters, queries
+	// only read it once and never lock
+	private volatile Model model = new Model(new ArrayList<Marker>(), 0, 0);
+	private final ThreadLocal<Selection> selection = new ThreadLocal<Selection>();
 
 	public LeastSquaresImagePositionLocator() {
 	}
 
+	/**
+	 * Restricts the fit to the k markers closest to the current position.
+	 * @param k number of markers to use, 0 to use all markers
+	 */
+	public synchronized void setNearestMarkerCount(int k) {
+		setModel(model.withSearch((k <= 0) ? 0 : Math.max(k, MIN_FIT_MARKERS),
+				model.maxMarkerDistance));
+	}
+
+	public int getNearestMarkerCount() {
+		return model.nearestMarkerCount;
+	}
+
+	/**
+	 * Restricts the fit to markers within radius (in meters) of the
+	 * current position. If fewer than 3 markers are in range the
+	 * 3 closest ones are used instead.
+	 * @param radius search radius, 0 to disable
+	 */
+	public synchronized void setMaxMarkerDistance(double radius) {
+		setModel(model.withSearch(model.nearestMarkerCount, (radius <= 0) ? 0 : radius));
+	}
+
+	public double getMaxMarkerDistance() {
+		return model.maxMarkerDistance;
+	}
+
+	private void setModel(Model m) {
+		model = m;
+	}
+
 	public Point2D getPointPosition(GpsPoint currentPosition) {
-		if (markers == null || markers.size() <= 2 || currentPosition == null)
+		if (currentPosition == null)
 			return null;
-		// Recenter for better numerical stability
-		double cur_lon = currentPosition.longitude;
-		double cur_lat = currentPosition.latitude;
-		// Build linear system to solve to get coordinate
-		// transform - separately for x and y
-		// Need a 3rd constant 1 input to represent translations
-		// (compare: w in OpenGL).
-		// While at it calculate the minimum distance as well.
-		double[][] A = new double[markers.size()][3];
-		double[] bx = new double[markers.size()];
-		double[] by = new double[markers.size()];
-		double[] dist = new double[markers.size()];
-		double mindist = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < markers.size(); i++) {
-			A[i][0] = markers.get(i).realpoint.longitude - cur_lon;
-			A[i][1] = markers.get(i).realpoint.latitude - cur_lat;
-			A[i][2] = 1;
-			dist[i] = A[i][0] * A[i][0] + A[i][1] * A[i][1];
-			mindist = Math.min(mindist, dist[i]);
-			if (mindist == 0) {
-				return new Point2D(markers.get(i).imgpoint.x, markers.get(i).imgpoint.y);
+		FPoint2D result = new FPoint2D();
+		if (!getPointPosition(currentPosition.longitude, currentPosition.latitude, result))
+			return null;
+		return new Point2D(result);
+	}
+
+	/**
+	 * Allocation free variant of getPointPosition(GpsPoint),
+	 * once the calling thread has made a query on the current model.
+	 * @param result receives the image position
+	 * @return false if there are not enough markers for a position
+	 */
+	public boolean getPointPosition(double longitude, double latitude, FPoint2D result) {
+		Model m = model;
+		if (m.markerCount <= 2)
+			return false;
+		double e = m.projection.toEast(longitude);
+		double n = m.projection.toNorth(latitude);
+		if (m.nearestMarkerCount > 0 || m.maxMarkerDistance > 0) {
+			Selection sel = selection.get();
+			if (sel == null || sel.markers.length < m.selectionSize()) {
+				sel = new Selection(m.selectionSize());
+				selection.set(sel);
 			}
-			bx[i] = markers.get(i).imgpoint.x;
-			by[i] = markers.get(i).imgpoint.y;
+			int count = m.selectMarkers(e, n, sel.markers, sel.distances);
+			m.solve(e, n, sel.markers, count, result);
+		} else {
+			m.solve(e, n, null, m.markerCount, result);
 		}
-		// Multiple A and b by transpose(A)*weigths
-		// TODO: review weigths, they are supposed to be
-		// inversely proportional to datapoint reliability.
-		// 1/distance^2 is cheap but just a wild guess, and
-		// GPS signal quality when marker was set could
-		// be used as input in addition...
-		double[] bx3 = new double[3];
-		double[] by3 = new double[3];
-		double[][] AtWA = new double[3][3];
-		for (int i = 0; i < markers.size(); i++) {
-			double weight = mindist / dist[i];
-			bx3[0] += bx[i] * A[i][0] * weight;
-			bx3[1] += bx[i] * A[i][1] * weight;
-			bx3[2] += bx[i] * A[i][2] * weight;
-			by3[0] += by[i] * A[i][0] * weight;
-			by3[1] += by[i] * A[i][1] * weight;
-			by3[2] += by[i] * A[i][2] * weight;
-			AtWA[0][0] += A[i][0] * A[i][0] * weight;
-			AtWA[0][1] += A[i][0] * A[i][1] * weight;
-			AtWA[0][2] += A[i][0] * A[i][2] * weight;
-			AtWA[1][1] += A[i][1] * A[i][1] * weight;
-			AtWA[1][2] += A[i][1] * A[i][2] * weight;
-			AtWA[2][2] += A[i][2] * A[i][2] * weight;
-		}
-		AtWA[1][0] = AtWA[0][1];
-		AtWA[2][0] = AtWA[0][2];
-		AtWA[2][1] = AtWA[1][2];
-		// TODO: if det == 0 create extra point like for 2 markers case
-		// Also warn if near 0 and thus unstable
-		double detAtWA = AtWA[0][0] * AtWA[1][1] * AtWA[2][2] +
-			AtWA[0][1] * AtWA[1][2] * AtWA[2][0] +
-			AtWA[0][2] * AtWA[1][0] * AtWA[2][1] -
-			AtWA[0][2] * AtWA[1][1] * AtWA[2][0] -
-			AtWA[1][2] * AtWA[2][1] * AtWA[0][0] -
-			AtWA[2][2] * AtWA[0][1] * AtWA[1][0];
-		// Inverse the matrix. Standard cross-product method.
-		// We need only the last row though
-		double[] inverse = new double[3];
-		inverse[0] = AtWA[1][0] * AtWA[2][1] - AtWA[1][1] * AtWA[2][0];
-		inverse[1] = AtWA[2][0] * AtWA[0][1] - AtWA[2][1] * AtWA[0][0];
-		inverse[2] = AtWA[0][0] * AtWA[1][1] - AtWA[0][1] * AtWA[1][0];
-		// Use inverse matrix to solve linear system
-		// The last coefficient is the offset between the coordinate systems.
-		// As we recentered GPS to our current position, the offset is our map position
-		double posx = inverse[0] * bx3[0] + inverse[1] * bx3[1] + inverse[2] * bx3[2];
-		posx /= detAtWA;
-		double posy = inverse[0] * by3[0] + inverse[1] * by3[1] + inverse[2] * by3[2];
-		posy /= detAtWA;
-		// Apply found coordinate transformation
-		return new Point2D(posx, posy);
+		return true;
+	}
+
+	public void getPointPositions(double[] longitudes, double[] latitudes,
+			double[] xs, double[] ys, int offset, int count) {
+		model.getPointPositions(longitudes, latitudes, xs, ys, offset, count);
 	}
 
-	public void newMarkerAdded(List<Marker> markers) {
+	public LocatorModel getModel() {
+		return model;
+	}
+
+	public synchronized void newMarkerAdded(List<Marker> markers) {
 		// TODO: Run a trial run of the solver to check quality of points.
 		// If bad, display a warning. Possibly try to find outliers
 		// and suggest for correction
-		this.markers = new ArrayList<Marker>(markers);
-		if (this.markers.size() == 2) {
+		ArrayList<Marker> tmp = new ArrayList<Marker>(markers);
+		if (tmp.size() == 2) {
 			// Note: this can only work if both map and
 			// GPS have identical scales in X and Y direction.
-			this.markers.add(this.markers.get(0).getOrthogonal(this.markers.get(1)));
+			tmp.add(tmp.get(0).getOrthogonal(tmp.get(1)));
+		}
+		Model old = model;
+		setModel(new Model(tmp, old.nearestMarkerCount, old.maxMarkerDistance));
+	}
+
+	/**
+	 * Per thread scratch space of the marker selection.
+	 */
+	private static final class Selection {
+		final int[] markers;
+		final double[] distances;
+		
+		Selection(int size) {
+			markers = new int[size];
+			distances = new double[size];
+		}
+	}
+
+	/**
+	 * Marker coordinates as flat arrays plus the search settings.
+	 * Positions are in meters in a local plane around the markers.
+	 * Never changed after construction.
+	 */
+	static final class Model implements LocatorModel {
+		final int markerCount;
+		final LocalProjection projection;
+		final double[] markerEast;
+		final double[] markerNorth;
+		final double[] markerX;
+		final double[] markerY;
+		final PointKdTree markerIndex;
+		final int nearestMarkerCount;
+		final double maxMarkerDistance;
+
+		Model(List<Marker> markers, int nearestMarkerCount, double maxMarkerDistance) {
+			int count = markers.size();
+			projection = LocalProjection.forMarkers(markers);
+			markerEast = new double[count];
+			markerNorth = new double[count];
+			markerX = new double[count];
+			markerY = new double[count];
+			for (int i = 0; i < count; i++) {
+				Marker m = markers.get(i);
+				markerEast[i] = projection.toEast(m.realpoint.longitude);
+				markerNorth[i] = projection.toNorth(m.realpoint.latitude);
+				markerX[i] = m.imgpoint.x;
+				markerY[i] = m.imgpoint.y;
+			}
+			markerCount = count;
+			markerIndex = new PointKdTree(markerEast, markerNorth, count);
+			this.nearestMarkerCount = nearestMarkerCount;
+			this.maxMarkerDistance = maxMarkerDistance;
+		}
+
+		private Model(Model base, int nearestMarkerCount, double maxMarkerDistance) {
+			markerCount = base.markerCount;
+			projection = base.projection;
+			markerEast = base.markerEast;
+			markerNorth = base.markerNorth;
+			markerX = base.markerX;
+			markerY = base.markerY;
+			markerIndex = base.markerIndex;
+			this.nearestMarkerCount = nearestMarkerCount;
+			this.maxMarkerDistance = maxMarkerDistance;
+		}
+
+		Model withSearch(int nearestMarkerCount, double maxMarkerDistance) {
+			return new Model(this, nearestMarkerCount, maxMarkerDistance);
+		}
+
+		/**
+		 * @return the most markers selectMarkers can select
+		 */
+		int selectionSize() {
+			int size = markerCount;
+			if (nearestMarkerCount > 0)
+				size = Math.min(size, nearestMarkerCount);
+			return Math.max(size, MIN_FIT_MARKERS);
+		}
+
+		/**
+		 * Fills selection with the indices of the markers used for the fit.
+		 * @param selection must hold at least selectionSize() entries
+		 * @return number of selected markers
+		 */
+		int selectMarkers(double e, double n, int[] selection, double[] selectionDist) {
+			int k = nearestMarkerCount;
+			if (maxMarkerDistance > 0) {
+				int found = markerIndex.withinRadius(e, n, maxMarkerDistance, selection, selectionDist);
+				if (found < MIN_FIT_MARKERS)
+					k = MIN_FIT_MARKERS;
+				else if (found < selectionSize() || k == 0)
+					return found;
+				// else more than k markers in range, the k nearest are all in range
+			}
+			return markerIndex.nearest(e, n, k, selection, selectionDist);
+		}
+
+		/**
+		 * In k-nearest mode the marker selection of the previous point
+		 * is kept as long as it provably still holds the k nearest markers,
+		 * so for a track only every few points need a tree search.
+		 */
+		public void getPointPositions(double[] longitudes, double[] latitudes,
+				double[] xs, double[] ys, int offset, int count) {
+			if (markerCount <= 2) {
+				for (int i = offset; i < offset + count; i++) {
+					xs[i] = Double.NaN;
+					ys[i] = Double.NaN;
+				}
+				return;
+			}
+			FPoint2D result = new FPoint2D();
+			if (nearestMarkerCount == 0 && maxMarkerDistance == 0) {
+				for (int i = offset; i < offset + count; i++) {
+					solve(projection.toEast(longitudes[i]), projection.toNorth(latitudes[i]),
+							null, markerCount, result);
+					xs[i] = result.x;
+					ys[i] = result.y;
+				}
+				return;
+			}
+			// per batch state, so batches can run concurrently
+			int[] selection = new int[selectionSize() + 1];
+			double[] selectionDist = new double[selectionSize() + 1];
+			boolean reusable = maxMarkerDistance == 0 && nearestMarkerCount < markerCount;
+			int selected = 0;
+			double selEast = 0, selNorth = 0;
+			// how far the position may move before the selection may change
+			double slack = -1;
+			for (int i = offset; i < offset + count; i++) {
+				double e = projection.toEast(longitudes[i]);
+				double n = projection.toNorth(latitudes[i]);
+				if (reusable) {
+					double de = e - selEast;
+					double dn = n - selNorth;
+					if (2 * Math.sqrt(de * de + dn * dn) > slack) {
+						// search one extra marker to know the margin to the k-th one
+						int found = markerIndex.nearest(e, n, nearestMarkerCount + 1, selection, selectionDist);
+						selected = found - 1;
+						slack = Math.sqrt(selectionDist[found - 1]) - Math.sqrt(selectionDist[found - 2]);
+						selEast = e;
+						selNorth = n;
+					}
+				} else {
+					selected = selectMarkers(e, n, selection, selectionDist);
+				}
+				solve(e, n, selection, selected, result);
+				xs[i] = result.x;
+				ys[i] = result.y;
+			}
+		}
+
+		/**
+		 * Solves the weighted fit for the given position in the local plane.
+		 * @param selection indices of the markers to use, or null for the first count markers
+		 */
+		void solve(double east, double north, int[] selection, int count, FPoint2D result) {
+			// Recenter for better numerical stability
+			double cur_east = east;
+			double cur_north = north;
+			// Build the weighted normal equations transpose(A)*W*A and
+			// transpose(A)*W*b in one pass, separately for x and y.
+			// A has the rows (east, north, 1): the 3rd constant 1 input
+			// represents translations (compare: w in OpenGL).
+			// TODO: review weigths, they are supposed to be
+			// inversely proportional to datapoint reliability.
+			// 1/distance^2 is cheap but just a wild guess, and
+			// GPS signal quality when marker was set could
+			// be used as input in addition...
+			// Scaling all weights by the same factor does not change
+			// the solution, so no need to normalize by the minimum distance.
+			double a00 = 0, a01 = 0, a02 = 0, a11 = 0, a12 = 0, a22 = 0;
+			double bx0 = 0, bx1 = 0, bx2 = 0;
+			double by0 = 0, by1 = 0, by2 = 0;
+			for (int j = 0; j < count; j++) {
+				int i = (selection == null) ? j : selection[j];
+				double deast = markerEast[i] - cur_east;
+				double dnorth = markerNorth[i] - cur_north;
+				double dist = deast * deast + dnorth * dnorth;
+				if (dist == 0) {
+					result.x = markerX[i];
+					result.y = markerY[i];
+					return;
+				}
+				double weight = 1 / dist;
+				double weast = deast * weight;
+				double wnorth = dnorth * weight;
+				a00 += deast * weast;
+				a01 += deast * wnorth;
+				a02 += weast;
+				a11 += dnorth * wnorth;
+				a12 += wnorth;
+				a22 += weight;
+				bx0 += markerX[i] * weast;
+				bx1 += markerX[i] * wnorth;
+				bx2 += markerX[i] * weight;
+				by0 += markerY[i] * weast;
+				by1 += markerY[i] * wnorth;
+				by2 += markerY[i] * weight;
+			}
+			// TODO: if det == 0 create extra point like for 2 markers case
+			// Also warn if near 0 and thus unstable
+			double detAtWA = a00 * a11 * a22 +
+				a01 * a12 * a02 +
+				a02 * a01 * a12 -
+				a02 * a11 * a02 -
+				a12 * a12 * a00 -
+				a22 * a01 * a01;
+			// Inverse the matrix. Standard cross-product method.
+			// We need only the last row though
+			double inverse0 = a01 * a12 - a11 * a02;
+			double inverse1 = a02 * a01 - a12 * a00;
+			double inverse2 = a00 * a11 - a01 * a01;
+			// Use inverse matrix to solve linear system
+			// The last coefficient is the offset between the coordinate systems.
+			// As we recentered GPS to our current position, the offset is our map position
+			result.x = (inverse0 * bx0 + inverse1 * bx1 + inverse2 * bx2) / detAtWA;
+			result.y = (inverse0 * by0 + inverse1 * by1 + inverse2 * by2) / detAtWA;
 		}
 	}
 }
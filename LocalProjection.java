@@ -0,0 +1,91 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.List;
+
+/**
+ * Equirectangular projection of GPS coordinates onto a plane
+ * tangent at an origin, in metres east and north of it.
+ * Over the extent of a map the distortion is far below GPS
+ * accuracy, and distances, angles and barycentric coordinates
+ * become plain multiply-adds instead of spherical trigonometry.
+ * Never changed after construction.
+ */
+public final class LocalProjection {
+	// earth's mean radius in meters
+	static final double RADIUS = GpsPoint.RADIUS * 1000;
+	
+	private final double originLongitude;
+	private final double originLatitude;
+	// meters per degree
+	private final double eastScale;
+	private final double northScale;
+	
+	public LocalProjection(double originLongitude, double originLatitude) {
+		this.originLongitude = originLongitude;
+		this.originLatitude = originLatitude;
+		northScale = RADIUS * Math.PI / 180d;
+		eastScale = northScale * Math.cos(Math.toRadians(originLatitude));
+	}
+	
+	/**
+	 * @return projection with its origin in the center of the markers'
+	 * bounding box, or at 0/0 for no markers
+	 */
+	public static LocalProjection forMarkers(List<Marker> markers) {
+		if (markers.isEmpty())
+			return new LocalProjection(0, 0);
+		double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+		double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+		for (Marker m : markers) {
+			minLon = Math.min(minLon, m.realpoint.longitude);
+			maxLon = Math.max(maxLon, m.realpoint.longitude);
+			minLat = Math.min(minLat, m.realpoint.latitude);
+			maxLat = Math.max(maxLat, m.realpoint.latitude);
+		}
+		return new LocalProjection((minLon + maxLon) / 2, (minLat + maxLat) / 2);
+	}
+	
+	public double getOriginLongitude() {
+		return originLongitude;
+	}
+	
+	public double getOriginLatitude() {
+		return originLatitude;
+	}
+	
+	/**
+	 * @return meters per degree of longitude
+	 */
+	double getEastScale() {
+		return eastScale;
+	}
+	
+	/**
+	 * @return meters per degree of latitude
+	 */
+	double getNorthScale() {
+		return northScale;
+	}
+	
+	/**
+	 * @return meters east of the origin
+	 */
+	public double toEast(double longitude) {
+		return (longitude - originLongitude) * eastScale;
+	}
+	
+	/**
+	 * @return meters north of the origin
+	 */
+	public double toNorth(double latitude) {
+		return (latitude - originLatitude) * northScale;
+	}
+	
+	public double toLongitude(double east) {
+		return originLongitude + east / eastScale;
+	}
+	
+	public double toLatitude(double north) {
+		return originLatitude + north / northScale;
+	}
+}
@@ -17,7 +17,13 @@
 package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -25,6 +31,16 @@ import java.util.concurrent.Callable;
  * Simplifies the usage and provides plugable data backends
  * via ILDMIOHandler. By default also tries to filter too fast
  * GPS movements.
+ * 
+ * The locator is rebuilt lazily: changes to the markers only count
+ * up a version, the next projection rebuilds the model once for it.
+ * 
+ * With startAsync GpsPoints are handled by a worker thread
+ * instead of the caller of addPoint. The other methods may then
+ * be called from any thread.
+ * 
+ * The host application is called back after the lock of this
+ * manager is released, so the callback may call into it.
  */
 public class LocationDataManager {
 	// seconds until would be accepted
@@ -33,6 +49,16 @@ public class LocationDataManager {
 	static int MAX_MOVEMENT_SPEED = 20;
 	// seconds untill the last GpsPoint cannot be used as a marker anymore
 	static int MAX_VALID_GPS_TIME = 30;
+	
+	/**
+	 * What addPoints projects onto the image.
+	 */
+	public enum Projection {
+		// only the last accepted point, like addPoint
+		LAST_ONLY,
+		// every accepted point in one batch
+		ALL
+	}
 
 	// track data
 	Point2D imageSize;
@@ -45,6 +71,32 @@ public class LocationDataManager {
 	Callable<Void> hostAppCallback;
 	Point2D lastImagePoint;
 	GpsPoint lastGpsPoint;
+	// its trace sink receives rejected points while debug output
+	// is enabled, null for none
+	IPLSettingsContainer settings;
+	// runs hostAppCallback, null for the reporting thread
+	volatile Executor callbackExecutor;
+	// a new image point waits for deliverHostAppCallback
+	boolean isHostAppCallPending;
+	
+	// counted up on every change of the markers
+	long markerVersion;
+	// markerVersion the model of imagePositionAlg was built for
+	long modelVersion;
+	// open beginMarkerUpdate calls
+	int markerUpdateDepth;
+	
+	// Asynchronous ingest, null while addPoint works synchronously
+	private volatile BlockingQueue<GpsPoint> ingestQueue;
+	private Thread ingestWorker;
+	// marks the end of the queue for the worker
+	private static final GpsPoint STOP = new GpsPoint(0, 0, 0);
+	// fixes stored without being projected
+	private final AtomicLong coalescedPointCount = new AtomicLong();
+	// fixes given to the queue and those the worker is done with,
+	// the latter guarded by this
+	private final AtomicLong queuedPointCount = new AtomicLong();
+	private long handledPointCount;
 
 	/**
 	 * Create new LocationDataManager and inits algorithm
@@ -59,15 +111,23 @@ public class LocationDataManager {
 
 		this.imageSize = imageSize;
 		lastGPSFixTime = iohandler.getLastGpsPointTime();
-		int numberOfGpsPoints = iohandler.getAllGpsPoints().size();
-		if (numberOfGpsPoints != 0)
-			lastGpsPoint = iohandler.getAllGpsPoints().get(numberOfGpsPoints - 1);
+		lastGpsPoint = iohandler.getLastGpsPoint();
+		// the model is built from stored markers on first use
+		if (!iohandler.getAllMarkers().isEmpty())
+			markerVersion = 1;
 		
 		imagePositionAlg = ipl;
+		if (ipl instanceof TriangleImagePositionLocator)
+			settings = ((TriangleImagePositionLocator) ipl).settings;
 	}
 
 	/**
 	 * Adds new GpsPoint to the algorithms knowledge. Input may be raw.
+	 * In asynchronous mode it is only queued; if the queue is full this
+	 * blocks until the worker made room, so no point is lost. Must not
+	 * be called while holding the lock of this manager then. Called
+	 * back on the worker thread it stores the point right away, ahead
+	 * of those still queued, as the worker cannot make room for it.
 	 * 
 	 * @param input
 	 */
@@ -75,6 +135,34 @@ public class LocationDataManager {
 		if (input == null)
 			return;
 		
+		BlockingQueue<GpsPoint> queue = ingestQueue;
+		if (queue != null && Thread.currentThread() != ingestWorker) {
+			queuedPointCount.incrementAndGet();
+			boolean isInterrupted = false;
+			while (true) {
+				try {
+					queue.put(input);
+					break;
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			return;
+		}
+		synchronized (this) {
+			if (storePoint(input))
+				reportNewImagePoint(project(input));
+		}
+		deliverHostAppCallback();
+	}
+	
+	/**
+	 * Filters input and stores it if accepted.
+	 * @return if input was accepted
+	 */
+	private boolean storePoint(GpsPoint input) {
 		boolean conforms = false;
 		double elapsedTime = 0;
 		double movementSpeed = 0;
@@ -94,17 +182,318 @@ public class LocationDataManager {
 			lastGPSFixTime = System.currentTimeMillis();
 			iohandler.setLastGpsPointTime(lastGPSFixTime);
 			iohandler.addGpsPoint(input);
-
-			reportNewImagePoint(imagePositionAlg.getPointPosition(input));
+			return true;
+		}
+		TraceSink trace = getTraceSink();
+		if (trace != null)
+			trace.trace(TraceEvent.REJECTED, input.time, input.longitude, input.latitude, movementSpeed);
+		return false;
+	}
+	
+	/**
+	 * Adds a batch of GpsPoints, e.g. an imported log, like addPoint
+	 * would one by one. The host application is called back once.
+	 * Runs on the calling thread also in asynchronous mode, after
+	 * waiting for the worker to store the points queued before, so
+	 * the track stays in time order. Called back on the worker
+	 * thread it cannot wait and stores the batch right away.
+	 * 
+	 * @param projection which of the accepted points to project
+	 * @return image positions of the projected points,
+	 * NaN where there is none
+	 */
+	public ProjectedTrack addPoints(Collection<GpsPoint> points, Projection projection) {
+		return addPoints(points.toArray(new GpsPoint[points.size()]), projection);
+	}
+	
+	/**
+	 * See addPoints(Collection, Projection). null entries are skipped.
+	 */
+	public ProjectedTrack addPoints(GpsPoint[] points, Projection projection) {
+		int count = 0;
+		long[] times = new long[points.length];
+		double[] longitudes = new double[points.length];
+		double[] latitudes = new double[points.length];
+		for (GpsPoint p : points) {
+			if (p == null)
+				continue;
+			times[count] = p.time;
+			longitudes[count] = p.longitude;
+			latitudes[count] = p.latitude;
+			count++;
+		}
+		return addPoints(times, longitudes, latitudes, 0, count, projection);
+	}
+	
+	/**
+	 * See addPoints(Collection, Projection). Takes the points at
+	 * offset..offset+count of the arrays. The arrays are not kept.
+	 */
+	public ProjectedTrack addPoints(long[] times, double[] longitudes,
+			double[] latitudes, int offset, int count, Projection projection) {
+		ProjectedTrack result;
+		synchronized (this) {
+			awaitQueuedPoints();
+			result = storePoints(times, longitudes, latitudes, offset, count, projection);
+		}
+		deliverHostAppCallback();
+		return result;
+	}
+	
+	/**
+	 * Waits until the worker handled all points queued so far.
+	 * Called with the lock held, which wait releases for the worker.
+	 */
+	private void awaitQueuedPoints() {
+		if (Thread.currentThread() == ingestWorker)
+			return;
+		long queued = queuedPointCount.get();
+		boolean isInterrupted = false;
+		while (handledPointCount < queued) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				isInterrupted = true;
+			}
+		}
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	private ProjectedTrack storePoints(long[] times, double[] longitudes,
+			double[] latitudes, int offset, int count, Projection projection) {
+		// speed of every point against the one before it in the batch,
+		// with no dependency between the iterations; the filter below
+		// only has to recompute it after refusing a point
+		double[] speeds = new double[count];
+		for (int i = 1; i < count; i++) {
+			int k = offset + i;
+			double elapsedTime = ((times[k] - times[k - 1]) / 1000);
+			speeds[i] = GpsPoint.getSphericalDistance(longitudes[k - 1], latitudes[k - 1],
+					longitudes[k], latitudes[k]) / elapsedTime / 1000;
+		}
+		
+		// filtered in one pass, accepted points are moved to the front
+		long[] acceptedTimes = new long[count];
+		double[] acceptedLongitudes = new double[count];
+		double[] acceptedLatitudes = new double[count];
+		int accepted = 0;
+		boolean hasLast = lastGpsPoint != null;
+		long lastTime = hasLast ? lastGpsPoint.time : 0;
+		double lastLongitude = hasLast ? lastGpsPoint.longitude : 0;
+		double lastLatitude = hasLast ? lastGpsPoint.latitude : 0;
+		boolean isPreviousAccepted = false;
+		TraceSink trace = getTraceSink();
+		for (int i = 0; i < count; i++) {
+			int k = offset + i;
+			long time = times[k];
+			double movementSpeed = 0;
+			boolean conforms = !hasLast || ((time - lastTime) / 1000) >= MAX_POINT_DENIAL_TIME;
+			if (!conforms) {
+				if (isPreviousAccepted) {
+					movementSpeed = speeds[i];
+				} else {
+					double elapsedTime = ((time - lastTime) / 1000);
+					movementSpeed = GpsPoint.getSphericalDistance(lastLongitude, lastLatitude,
+							longitudes[k], latitudes[k]) / elapsedTime / 1000;
+				}
+				conforms = movementSpeed < MAX_MOVEMENT_SPEED;
+			}
+			isPreviousAccepted = conforms || !isSpeedFiltering;
+			if (isPreviousAccepted) {
+				acceptedTimes[accepted] = time;
+				acceptedLongitudes[accepted] = longitudes[k];
+				acceptedLatitudes[accepted] = latitudes[k];
+				accepted++;
+				hasLast = true;
+				lastTime = time;
+				lastLongitude = longitudes[k];
+				lastLatitude = latitudes[k];
+			} else if (trace != null) {
+				trace.trace(TraceEvent.REJECTED, time, longitudes[k], latitudes[k], movementSpeed);
+			}
+		}
+		if (accepted == 0)
+			return new ProjectedTrack(new double[0], new double[0]);
+		
+		lastGpsPoint = new GpsPoint(lastLongitude, lastLatitude, lastTime);
+		lastGPSFixTime = System.currentTimeMillis();
+		iohandler.setLastGpsPointTime(lastGPSFixTime);
+		iohandler.addGpsPoints(acceptedTimes, acceptedLongitudes, acceptedLatitudes, 0, accepted);
+		
+		ProjectedTrack result;
+		if (projection == Projection.ALL) {
+			updateModel();
+			double[] xs = new double[accepted];
+			double[] ys = new double[accepted];
+			imagePositionAlg.getModel().getPointPositions(acceptedLongitudes, acceptedLatitudes,
+					xs, ys, 0, accepted);
+			result = new ProjectedTrack(xs, ys);
+			reportNewImagePoint(result.getPoint(accepted - 1));
 		} else {
-			System.err.println("Point: " + input.toString() + " exceeds MAX_MOVEMENT_SPEED by " + movementSpeed);
+			Point2D p = project(lastGpsPoint);
+			result = new ProjectedTrack(new double[] { (p == null) ? Double.NaN : p.x },
+					new double[] { (p == null) ? Double.NaN : p.y });
+			reportNewImagePoint(p);
+		}
+		return result;
+	}
+	
+	/**
+	 * Handles the points given to addPoint on a worker thread from
+	 * now on. The worker stores every accepted point but projects
+	 * only the latest of those queued while it was busy.
+	 * addPoint and stopAsync have to be called from one thread.
+	 * 
+	 * @param capacity number of points that may wait for the worker
+	 */
+	public synchronized void startAsync(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		if (ingestQueue != null)
+			return;
+		final BlockingQueue<GpsPoint> queue = new ArrayBlockingQueue<GpsPoint>(capacity);
+		ingestWorker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runIngest(queue);
+			}
+		}, "LocationDataManager ingest");
+		ingestWorker.setDaemon(true);
+		ingestWorker.start();
+		ingestQueue = queue;
+	}
+	
+	/**
+	 * Handles the queued points and returns to synchronous addPoint.
+	 * Blocks until the worker is done.
+	 */
+	public void stopAsync() {
+		BlockingQueue<GpsPoint> queue;
+		Thread worker;
+		synchronized (this) {
+			queue = ingestQueue;
+			if (queue == null)
+				return;
+			ingestQueue = null;
+			// kept for awaitQueuedPoints until the next startAsync
+			worker = ingestWorker;
+		}
+		// the worker needs the lock to make room
+		boolean isInterrupted = false;
+		boolean isStopQueued = false;
+		while (worker.isAlive()) {
+			try {
+				if (!isStopQueued) {
+					queue.put(STOP);
+					isStopQueued = true;
+				}
+				worker.join();
+			} catch (InterruptedException e) {
+				isInterrupted = true;
+			}
+		}
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	private void runIngest(BlockingQueue<GpsPoint> queue) {
+		List<GpsPoint> batch = new ArrayList<GpsPoint>();
+		boolean isStopped = false;
+		while (!isStopped) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			queue.drainTo(batch);
+			synchronized (this) {
+				GpsPoint latest = null;
+				int accepted = 0;
+				for (GpsPoint p : batch) {
+					if (p == STOP) {
+						isStopped = true;
+						break;
+					}
+					try {
+						if (storePoint(p)) {
+							latest = p;
+							accepted++;
+						}
+					} catch (RuntimeException e) {
+						traceIngestError(e, p.time);
+					}
+					handledPointCount++;
+				}
+				notifyAll();
+				if (accepted > 1)
+					coalescedPointCount.addAndGet(accepted - 1);
+				if (latest != null) {
+					try {
+						reportNewImagePoint(project(latest));
+					} catch (RuntimeException e) {
+						traceIngestError(e, latest.time);
+					}
+				}
+			}
+			try {
+				deliverHostAppCallback();
+			} catch (RuntimeException e) {
+				traceIngestError(e, 0);
+			}
+			batch.clear();
 		}
 	}
+	
+	/**
+	 * Reports an exception the worker thread caught as
+	 * TraceEvent.INGEST_ERROR, printed if there is no trace sink.
+	 * @param time GPS time of the point handled, 0 for the callback
+	 */
+	private synchronized void traceIngestError(Exception e, long time) {
+		TraceSink trace = getTraceSink();
+		if (trace != null)
+			trace.trace(TraceEvent.INGEST_ERROR, time, 0, 0, 0);
+		else
+			e.printStackTrace();
+	}
+	
+	/**
+	 * @return if addPoint queues the points for a worker thread
+	 */
+	public boolean isAsync() {
+		return ingestQueue != null;
+	}
+	
+	/**
+	 * @return number of points waiting for the worker thread
+	 */
+	public int getQueuedPointCount() {
+		BlockingQueue<GpsPoint> queue = ingestQueue;
+		return (queue == null) ? 0 : queue.size();
+	}
+	
+	/**
+	 * @return number of accepted points the worker stored
+	 * without projecting them, as newer ones were waiting
+	 */
+	public long getCoalescedPointCount() {
+		return coalescedPointCount.get();
+	}
+	
+	/**
+	 * @param executor runs the callback given to the constructor,
+	 * e.g. the UI thread of the host application. null calls it
+	 * on the thread that found the position.
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		callbackExecutor = executor;
+	}
 
 	/**
 	 * Checks if setting a point now would be accepted
 	 */
-	public boolean isMarkerPlacingAllowed() {
+	public synchronized boolean isMarkerPlacingAllowed() {
 		if (lastGpsPoint == null) 
 			return false;
 		
@@ -125,6 +514,16 @@ public class LocationDataManager {
 	 */
 	public Marker addMarker(Point2D imgpoint, long time)
 			throws NoGpsDataAvailableException, PointNotInImageBoundsException {
+		Marker result;
+		synchronized (this) {
+			result = storeMarker(imgpoint, time);
+		}
+		deliverHostAppCallback();
+		return result;
+	}
+	
+	private Marker storeMarker(Point2D imgpoint, long time)
+			throws NoGpsDataAvailableException, PointNotInImageBoundsException {
 		if (!isMarkerPlacingAllowed())
 			throw new NoGpsDataAvailableException("No GPS fix!");
 		
@@ -142,28 +541,70 @@ public class LocationDataManager {
 			throw new NoGpsDataAvailableException("Point already known!");
 
 		iohandler.addMarker(result);
-
-		if (imagePositionAlg != null)
-			imagePositionAlg.newMarkerAdded(iohandler.getAllMarkers());
-		
-		refreshLastPosition();
+		markerVersion++;
+		if (markerUpdateDepth == 0)
+			reportLastPosition();
 		return result;
 	}
 
 	/**
 	 * Refreshes all parameters and computes
 	 * the last recieved GpsPoint anew.
+	 * Also to be called after the markers of the
+	 * ILDMIOHandler were changed directly.
 	 */
 	public void refreshLastPosition() {
-		// Send new estimated user position
+		synchronized (this) {
+			markerVersion++;
+			if (markerUpdateDepth == 0)
+				reportLastPosition();
+		}
+		deliverHostAppCallback();
+	}
+	
+	/**
+	 * Defers model rebuilds until the matching endMarkerUpdate,
+	 * e.g. while importing markers or undoing several changes.
+	 * Points are projected with the previous model meanwhile.
+	 * Calls may be nested.
+	 */
+	public synchronized void beginMarkerUpdate() {
+		markerUpdateDepth++;
+	}
+	
+	/**
+	 * Ends a beginMarkerUpdate. The last one rebuilds the model
+	 * once and reports the position if markers were changed.
+	 */
+	public void endMarkerUpdate() {
+		synchronized (this) {
+			if (markerUpdateDepth == 0)
+				throw new IllegalStateException("No marker update in progress!");
+			if (--markerUpdateDepth == 0 && modelVersion != markerVersion)
+				reportLastPosition();
+		}
+		deliverHostAppCallback();
+	}
+	
+	/**
+	 * @return number of marker changes so far, the locator
+	 * model is rebuilt at most once per version
+	 */
+	public synchronized long getMarkerVersion() {
+		return markerVersion;
+	}
+	
+	/**
+	 * Sends the estimated position of the last GpsPoint.
+	 */
+	private void reportLastPosition() {
 		if (lastGpsPoint != null) {
 			if (iohandler.getAllMarkers().size() != 0) {
 				Point2D tmp;
 				if (iohandler.getAllMarkers().size() == 1) {
 					tmp = iohandler.getAllMarkers().get(0).imgpoint;
 				} else {
-					imagePositionAlg.newMarkerAdded(iohandler.getAllMarkers());
-					tmp = imagePositionAlg.getPointPosition(lastGpsPoint);
+					tmp = project(lastGpsPoint);
 				}
 				reportNewImagePoint(tmp);
 			}
@@ -171,28 +612,83 @@ public class LocationDataManager {
 	}
 	
 	/**
-	 * Signals the host application that a new point was found.
+	 * Rebuilds the model of imagePositionAlg if the markers changed
+	 * since it was built, unless a marker update is in progress.
+	 */
+	private void updateModel() {
+		if (modelVersion == markerVersion || markerUpdateDepth > 0 || imagePositionAlg == null)
+			return;
+		imagePositionAlg.newMarkerAdded(iohandler.getAllMarkers());
+		modelVersion = markerVersion;
+	}
+	
+	private Point2D project(GpsPoint p) {
+		updateModel();
+		return imagePositionAlg.getPointPosition(p);
+	}
+	
+	/**
+	 * Projects all known GpsPoints with the current markers,
+	 * e.g. to redraw the track after a new marker was added.
+	 */
+	public synchronized ProjectedTrack reprojectTrack() {
+		updateModel();
+		return new TrackReprojector().reproject(imagePositionAlg, iohandler.getGpsPoints());
+	}
+	
+	/**
+	 * Records that a new point was found. The host application is
+	 * signalled by the next deliverHostAppCallback.
 	 * 
 	 * @param p New image position
 	 */
 	private void reportNewImagePoint(Point2D p) {
 		if (p != null || p != lastImagePoint) {
 			lastImagePoint = p;
-			if (hostAppCallback != null) {
-				try {
-					hostAppCallback.call();
-				}
-				catch (Exception e) {
-					e.printStackTrace();
+			if (hostAppCallback != null)
+				isHostAppCallPending = true;
+		}
+	}
+	
+	/**
+	 * Signals the host application if a new point was reported.
+	 * Must be called without holding the lock of this manager.
+	 */
+	private void deliverHostAppCallback() {
+		synchronized (this) {
+			if (!isHostAppCallPending)
+				return;
+			isHostAppCallPending = false;
+		}
+		Executor executor = callbackExecutor;
+		if (executor == null) {
+			callHostApp();
+		} else {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					callHostApp();
 				}
-			}
+			});
+		}
+	}
+	
+	private void callHostApp() {
+		try {
+			hostAppCallback.call();
+		}
+		catch (Exception e) {
+			if (Thread.currentThread() == ingestWorker)
+				traceIngestError(e, 0);
+			else
+				e.printStackTrace();
 		}
 	}
 	
 	/**
 	 * @return Last known image position.
 	 */
-	public Point2D getLastImagePoint() {
+	public synchronized Point2D getLastImagePoint() {
 		return lastImagePoint;
 	}
 	
@@ -200,7 +696,7 @@ public class LocationDataManager {
 	 * @return The number of remaining markers to be set
 	 *         by the user before the location algorithm starts.
 	 */
-	public int remainingUserMarkerInputs() {
+	public synchronized int remainingUserMarkerInputs() {
 		int tmp = 3 - iohandler.getAllMarkers().size();
 		return (tmp < 0) ? 0 : tmp;
 	}
@@ -210,12 +706,27 @@ public class LocationDataManager {
 	 * @param isSpeedFiltering Desired state of isSpeedFiltering
 	 * @return The previous state of isSpeedFiltering
 	 */
-	public boolean setSpeedFiltering(boolean isSpeedFiltering) {
+	public synchronized boolean setSpeedFiltering(boolean isSpeedFiltering) {
 		boolean tmp = isSpeedFiltering;
 		this.isSpeedFiltering = isSpeedFiltering;
 		return tmp;
 	}
 	
+	/**
+	 * Sets the settings whose trace sink receives the points refused
+	 * by the speed filter as TraceEvent.REJECTED, only while their
+	 * debug output is enabled. Defaults to the settings of a
+	 * TriangleImagePositionLocator.
+	 * @param settings null for no tracing
+	 */
+	public synchronized void setSettings(IPLSettingsContainer settings) {
+		this.settings = settings;
+	}
+	
+	private TraceSink getTraceSink() {
+		return (settings == null) ? null : settings.getTraceSink();
+	}
+	
 	//-----------------------------------------------------
 	// IO-Handling
 	//-----------------------------------------------------	
@@ -227,20 +738,23 @@ public class LocationDataManager {
 	 * @param newHandler New data handler. If this is null,
 	 *            then a new LDMIOEmpty will be used.
 	 */
-	public void resetIOHandler(ILDMIOHandler newHandler) {
+	public synchronized void resetIOHandler(ILDMIOHandler newHandler) {
 		iohandler.save();
 		iohandler = (newHandler != null) ? newHandler : new LDMIOEmpty();
+		markerVersion++;
 	}
 
 	/**
 	 * Adds all data in addHandler to the LDMs knowledge.
 	 * Currently only transports marker data.
 	 */
-	public void addAllDataPointsFromIOHandler(ILDMIOHandler addHandler) {
+	public synchronized void addAllDataPointsFromIOHandler(ILDMIOHandler addHandler) {
 		ArrayList<Marker> tmpmarkers = addHandler.getAllMarkers();
 
 		for (Marker m : tmpmarkers) {
 			iohandler.addMarker(m);
 		}
+		if (!tmpmarkers.isEmpty())
+			markerVersion++;
 	}
 }
@@ -0,0 +1,26 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+/**
+ * Immutable snapshot of the knowledge of an ImagePositionLocator.
+ * Not affected by later newMarkerAdded calls on the locator
+ * and safe to use from several threads at once, unless
+ * isSnapshot says otherwise.
+ */
+public interface LocatorModel {
+
+	/**
+	 * Same as ImagePositionLocator.getPointPositions,
+	 * but always against this snapshot.
+	 */
+	public void getPointPositions(double[] longitudes, double[] latitudes,
+			double[] xs, double[] ys, int offset, int count);
+	
+	/**
+	 * @return false for the views the default
+	 * ImagePositionLocator.getModel returns, which follow the
+	 * locator and must only be used from one thread at a time
+	 */
+	public default boolean isSnapshot() {
+		return true;
+	}
+}
@@ -20,6 +20,10 @@ import java.io.Serializable;
 
 /**
  * A tuple of GpsPoint and Point2D.
+ * While the marker is held by an ILDMIOHandler change its realpoint
+ * only through ILDMIOHandler.setMarkerRealpoint; assigning the field
+ * or calling the update methods leaves the handler's marker searches
+ * at the old point.
  */
 public class Marker implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -0,0 +1,389 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup structure for the markers of an ILDMIOHandler. Exact
+ * points are found by hash, nearest markers through a uniform grid
+ * in image space and in a plane in meters. Markers are held by
+ * identity together with the points they were indexed at. The
+ * handler calls update after it changed a marker's points.
+ * Not thread safe, the handler's lock guards it.
+ */
+final class MarkerIndex {
+	// grid cell edge in pixels
+	static final double IMAGE_CELL_SIZE = 64;
+	// grid cell edge in meters at the equator
+	static final double GPS_CELL_SIZE = 100;
+	// plane of the gps grid, the same for every index. Distances
+	// east shrink by the cosine of the latitude from it.
+	private static final LocalProjection GRID_PROJECTION = new LocalProjection(0, 0);
+
+	// markers with equal image points in the order they were added
+	private final HashMap<Long, List<Marker>> byImage = new HashMap<Long, List<Marker>>();
+	// markers by their realpoint object, GpsPoints compare by identity
+	private final IdentityHashMap<GpsPoint, List<Marker>> byGps = new IdentityHashMap<GpsPoint, List<Marker>>();
+	private final Grid imageGrid;
+	private final Grid gpsGrid;
+	// where each marker was indexed
+	private final IdentityHashMap<Marker, Entry> entries = new IdentityHashMap<Marker, Entry>();
+
+	MarkerIndex() {
+		this(IMAGE_CELL_SIZE, GPS_CELL_SIZE);
+	}
+
+	/**
+	 * @param imageCellSize grid cell edge in pixels
+	 * @param gpsCellSize grid cell edge in meters at the equator,
+	 * about the usual tolerance of getMarker(GpsPoint, double)
+	 */
+	MarkerIndex(double imageCellSize, double gpsCellSize) {
+		imageGrid = new Grid(imageCellSize);
+		gpsGrid = new Grid(gpsCellSize);
+	}
+
+	MarkerIndex(List<Marker> markers) {
+		this();
+		for (Marker m : markers)
+			add(m);
+	}
+
+	/**
+	 * Points of a marker at the time it was indexed, so it is found
+	 * and removed there even if its fields were assigned meanwhile.
+	 */
+	private static final class Entry {
+		boolean hasImage;
+		int x;
+		int y;
+		GpsPoint realpoint;
+		double east;
+		double north;
+		// times the marker was added
+		int count = 1;
+	}
+
+	void add(Marker m) {
+		Entry e = entries.get(m);
+		if (e != null) {
+			e.count++;
+			return;
+		}
+		e = new Entry();
+		entries.put(m, e);
+		insert(m, e);
+	}
+
+	void remove(Marker m) {
+		Entry e = entries.get(m);
+		if (e == null || --e.count > 0)
+			return;
+		entries.remove(m);
+		delete(m, e);
+	}
+
+	/**
+	 * Moves m to its current points. Called by the handler after
+	 * they changed.
+	 */
+	void update(Marker m) {
+		Entry e = entries.get(m);
+		if (e == null)
+			return;
+		delete(m, e);
+		Entry updated = new Entry();
+		updated.count = e.count;
+		entries.put(m, updated);
+		insert(m, updated);
+	}
+
+	/**
+	 * Removes all markers.
+	 */
+	void clear() {
+		entries.clear();
+		byImage.clear();
+		byGps.clear();
+		imageGrid.clear();
+		gpsGrid.clear();
+	}
+
+	private void insert(Marker m, Entry e) {
+		if (m.imgpoint != null) {
+			e.hasImage = true;
+			e.x = m.imgpoint.x;
+			e.y = m.imgpoint.y;
+			add(byImage, key(e.x, e.y), m);
+			imageGrid.add(m, e.x, e.y);
+		}
+		if (m.realpoint != null) {
+			e.realpoint = m.realpoint;
+			e.east = GRID_PROJECTION.toEast(e.realpoint.longitude);
+			e.north = GRID_PROJECTION.toNorth(e.realpoint.latitude);
+			add(byGps, e.realpoint, m);
+			gpsGrid.add(m, e.east, e.north);
+		}
+	}
+
+	private void delete(Marker m, Entry e) {
+		if (e.hasImage) {
+			remove(byImage, key(e.x, e.y), m);
+			imageGrid.remove(m, e.x, e.y);
+		}
+		if (e.realpoint != null) {
+			remove(byGps, e.realpoint, m);
+			gpsGrid.remove(m, e.east, e.north);
+		}
+	}
+
+	/**
+	 * @return key equal for equal Point2Ds
+	 */
+	private static Long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	private static <K, V> void add(Map<K, List<V>> map, K key, V value) {
+		List<V> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<V>(1);
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	private static <K> void remove(Map<K, List<Marker>> map, K key, Marker m) {
+		List<Marker> list = map.get(key);
+		if (list != null && removeIdentical(list, m) && list.isEmpty())
+			map.remove(key);
+	}
+
+	private static boolean removeIdentical(List<Marker> list, Marker m) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == m) {
+				list.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the first added marker with this imgpoint or null
+	 */
+	Marker get(Point2D imgpoint) {
+		List<Marker> list = byImage.get(key(imgpoint.x, imgpoint.y));
+		return (list == null) ? null : list.get(0);
+	}
+
+	/**
+	 * @return the first added marker with this realpoint or null
+	 */
+	Marker get(GpsPoint realpoint) {
+		List<Marker> list = byGps.get(realpoint);
+		return (list == null) ? null : list.get(0);
+	}
+
+	/**
+	 * @return the marker with the imgpoint closest to p or null
+	 */
+	Marker getNearest(Point2D p) {
+		return imageGrid.getNearest(p.x, p.y, 1, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @return the marker with the realpoint closest to p or null
+	 */
+	Marker getNearest(GpsPoint p) {
+		return getNearest(p, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @return the marker with the realpoint closest to p if it is
+	 * at most tolerance meters away, else null
+	 */
+	Marker getNearest(GpsPoint p, double tolerance) {
+		// meters east at p per meter east in the grid, as in findNearest
+		double eastScale = Math.cos(Math.toRadians(p.latitude));
+		return gpsGrid.getNearest(GRID_PROJECTION.toEast(p.longitude), GRID_PROJECTION.toNorth(p.latitude),
+				eastScale, tolerance);
+	}
+
+	/**
+	 * Same as getNearest(Point2D) on an index of markers, without
+	 * building one.
+	 */
+	static Marker findNearest(List<Marker> markers, Point2D p) {
+		Marker best = null;
+		double distance = Double.POSITIVE_INFINITY;
+		for (Marker m : markers) {
+			if (m.imgpoint == null)
+				continue;
+			double dx = m.imgpoint.x - p.x;
+			double dy = m.imgpoint.y - p.y;
+			double d = Math.sqrt(dx * dx + dy * dy);
+			if (d < distance || (d == distance && best == null)) {
+				distance = d;
+				best = m;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Same as getNearest(GpsPoint, double) on an index of markers,
+	 * without building one.
+	 */
+	static Marker findNearest(List<Marker> markers, GpsPoint p, double tolerance) {
+		LocalProjection projection = new LocalProjection(p.longitude, p.latitude);
+		Marker best = null;
+		double distance = tolerance;
+		for (Marker m : markers) {
+			if (m.realpoint == null)
+				continue;
+			double dx = projection.toEast(m.realpoint.longitude);
+			double dy = projection.toNorth(m.realpoint.latitude);
+			double d = Math.sqrt(dx * dx + dy * dy);
+			if (d < distance || (d == distance && best == null)) {
+				distance = d;
+				best = m;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Uniform grid over the points of one space. Cells are
+	 * searched in rings around the query; when a ring would visit
+	 * more cells than there are markers all markers are scanned.
+	 * Distances scale x by a factor of at most 1 per query.
+	 */
+	private static final class Grid {
+		private final double cellSize;
+		private final HashMap<Long, List<Item>> cells = new HashMap<Long, List<Item>>();
+		private int size;
+
+		Grid(double cellSize) {
+			this.cellSize = cellSize;
+		}
+
+		private static final class Item {
+			final Marker marker;
+			final double x;
+			final double y;
+
+			Item(Marker marker, double x, double y) {
+				this.marker = marker;
+				this.x = x;
+				this.y = y;
+			}
+		}
+
+		private int cell(double v) {
+			return (int) Math.floor(v / cellSize);
+		}
+
+		void add(Marker m, double x, double y) {
+			MarkerIndex.add(cells, MarkerIndex.key(cell(x), cell(y)), new Item(m, x, y));
+			size++;
+		}
+
+		void remove(Marker m, double x, double y) {
+			Long key = MarkerIndex.key(cell(x), cell(y));
+			List<Item> list = cells.get(key);
+			if (list == null)
+				return;
+			for (int i = 0; i < list.size(); i++) {
+				if (list.get(i).marker == m) {
+					list.remove(i);
+					size--;
+					if (list.isEmpty())
+						cells.remove(key);
+					return;
+				}
+			}
+		}
+
+		void clear() {
+			cells.clear();
+			size = 0;
+		}
+
+		/**
+		 * @param xScale factor of x differences in the distance,
+		 * in (0, 1]
+		 */
+		Marker getNearest(double x, double y, double xScale, double maxDistance) {
+			if (size == 0)
+				return null;
+			int cx = cell(x);
+			int cy = cell(y);
+			Nearest best = new Nearest(x, y, xScale, maxDistance);
+			// a cell is at least this wide
+			double minCellSize = cellSize * xScale;
+			// points within maxDistance are at most this many rings away
+			double rings = maxDistance / minCellSize + 1;
+			long lastRing = (rings < Long.MAX_VALUE) ? (long) rings : Long.MAX_VALUE;
+			for (int r = 0; r <= lastRing; r++) {
+				// points in ring r are at least (r - 1) cells away
+				if (best.marker != null && best.distance <= (r - 1) * minCellSize)
+					break;
+				if ((2L * r + 1) * (2L * r + 1) > 4L * size + 8) {
+					for (List<Item> list : cells.values())
+						best.visit(list);
+					break;
+				}
+				if (r == 0) {
+					visit(cx, cy, best);
+					continue;
+				}
+				for (int i = -r; i <= r; i++) {
+					visit(cx + i, cy - r, best);
+					visit(cx + i, cy + r, best);
+				}
+				for (int j = -r + 1; j < r; j++) {
+					visit(cx - r, cy + j, best);
+					visit(cx + r, cy + j, best);
+				}
+			}
+			return best.marker;
+		}
+
+		private void visit(int cx, int cy, Nearest best) {
+			List<Item> list = cells.get(key(cx, cy));
+			if (list != null)
+				best.visit(list);
+		}
+
+		private static final class Nearest {
+			final double x;
+			final double y;
+			final double xScale;
+			double distance;
+			Marker marker;
+
+			Nearest(double x, double y, double xScale, double maxDistance) {
+				this.x = x;
+				this.y = y;
+				this.xScale = xScale;
+				distance = maxDistance;
+			}
+
+			void visit(List<Item> list) {
+				for (Item item : list) {
+					double dx = (item.x - x) * xScale;
+					double dy = item.y - y;
+					double d = Math.sqrt(dx * dx + dy * dy);
+					if (d < distance || (d == distance && marker == null)) {
+						distance = d;
+						marker = item.marker;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+/**
+ * Static 2D kd-tree over a fixed set of points.
+ * The tree is stored implicitly as a permutation of the
+ * point indices: the median of every range is its node.
+ * Queries write into caller supplied arrays and do not allocate.
+ */
+public class PointKdTree {
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] order;
+
+	/**
+	 * Builds the tree. The arrays are referenced, not copied,
+	 * and must not be changed afterwards.
+	 */
+	public PointKdTree(double[] xs, double[] ys, int count) {
+		this.xs = xs;
+		this.ys = ys;
+		order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		build(0, count, 0);
+	}
+
+	public int size() {
+		return order.length;
+	}
+
+	private void build(int lo, int hi, int depth) {
+		if (hi - lo <= 1)
+			return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, (depth & 1) == 0 ? xs : ys);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	/**
+	 * Quickselect: partially sorts order[lo..hi] so that
+	 * order[k] holds the element of rank k by key.
+	 */
+	private void select(int lo, int hi, int k, double[] key) {
+		while (hi > lo) {
+			double pivot = key[order[(lo + hi) >>> 1]];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (key[order[i]] < pivot) i++;
+				while (key[order[j]] > pivot) j--;
+				if (i <= j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Finds the k points closest to (x, y).
+	 * @param outIdx receives the point indices, closest first. Length >= k.
+	 * @param outDist2 receives the squared distances. Length >= k.
+	 * @return number of points found, min(k, size())
+	 */
+	public int nearest(double x, double y, int k, int[] outIdx, double[] outDist2) {
+		if (k <= 0)
+			return 0;
+		return nearest(0, order.length, 0, x, y, k, outIdx, outDist2, 0);
+	}
+
+	private int nearest(int lo, int hi, int depth, double x, double y,
+			int k, int[] outIdx, double[] outDist2, int found) {
+		if (lo >= hi)
+			return found;
+		int mid = (lo + hi) >>> 1;
+		int p = order[mid];
+		double dx = xs[p] - x;
+		double dy = ys[p] - y;
+		found = insertSorted(p, dx * dx + dy * dy, k, outIdx, outDist2, found);
+
+		double diff = (depth & 1) == 0 ? -dx : -dy;
+		if (diff < 0) {
+			found = nearest(lo, mid, depth + 1, x, y, k, outIdx, outDist2, found);
+			if (found < k || diff * diff < outDist2[found - 1])
+				found = nearest(mid + 1, hi, depth + 1, x, y, k, outIdx, outDist2, found);
+		} else {
+			found = nearest(mid + 1, hi, depth + 1, x, y, k, outIdx, outDist2, found);
+			if (found < k || diff * diff < outDist2[found - 1])
+				found = nearest(lo, mid, depth + 1, x, y, k, outIdx, outDist2, found);
+		}
+		return found;
+	}
+
+	private static int insertSorted(int idx, double dist2, int k,
+			int[] outIdx, double[] outDist2, int found) {
+		if (found == k && dist2 >= outDist2[k - 1])
+			return found;
+		int i = (found < k) ? found++ : k - 1;
+		while (i > 0 && outDist2[i - 1] > dist2) {
+			outIdx[i] = outIdx[i - 1];
+			outDist2[i] = outDist2[i - 1];
+			i--;
+		}
+		outIdx[i] = idx;
+		outDist2[i] = dist2;
+		return found;
+	}
+
+	/**
+	 * Finds all points within radius of (x, y), in no particular order.
+	 * At most outIdx.length points are reported.
+	 * @return number of points found
+	 */
+	public int withinRadius(double x, double y, double radius, int[] outIdx, double[] outDist2) {
+		return withinRadius(0, order.length, 0, x, y, radius * radius, outIdx, outDist2, 0);
+	}
+
+	private int withinRadius(int lo, int hi, int depth, double x, double y,
+			double r2, int[] outIdx, double[] outDist2, int found) {
+		if (lo >= hi || found == outIdx.length)
+			return found;
+		int mid = (lo + hi) >>> 1;
+		int p = order[mid];
+		double dx = xs[p] - x;
+		double dy = ys[p] - y;
+		double d2 = dx * dx + dy * dy;
+		if (d2 <= r2) {
+			outIdx[found] = p;
+			outDist2[found] = d2;
+			found++;
+		}
+
+		double diff = (depth & 1) == 0 ? -dx : -dy;
+		if (diff < 0 || diff * diff <= r2)
+			found = withinRadius(lo, mid, depth + 1, x, y, r2, outIdx, outDist2, found);
+		if (diff >= 0 || diff * diff <= r2)
+			found = withinRadius(mid + 1, hi, depth + 1, x, y, r2, outIdx, outDist2, found);
+		return found;
+	}
+}
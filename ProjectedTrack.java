@@ -0,0 +1,43 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+/**
+ * Image space polyline of a GPS track.
+ * Points without an image position are NaN.
+ */
+public class ProjectedTrack {
+	private final double[] xs;
+	private final double[] ys;
+	
+	ProjectedTrack(double[] xs, double[] ys) {
+		this.xs = xs;
+		this.ys = ys;
+	}
+	
+	public int size() {
+		return xs.length;
+	}
+	
+	public double getX(int i) {
+		return xs[i];
+	}
+	
+	public double getY(int i) {
+		return ys[i];
+	}
+	
+	/**
+	 * @return if point i has an image position
+	 */
+	public boolean isValid(int i) {
+		return !Double.isNaN(xs[i]) && !Double.isNaN(ys[i]);
+	}
+	
+	/**
+	 * @return image position of point i or null if it has none
+	 */
+	public Point2D getPoint(int i) {
+		if (!isValid(i))
+			return null;
+		return new Point2D(xs[i], ys[i]);
+	}
+}
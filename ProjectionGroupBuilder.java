@@ -0,0 +1,448 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills the projection groups of a set of ProjectionTriangles.
+ * Instead of calling tryAddToProjGroup for every pair, only
+ * triangles whose affine maps bring all vertices of the main
+ * triangle close enough to their image points are checked.
+ * 
+ * Whether a map brings a vertex there depends on the marker at the
+ * vertex, not on the main triangle. So first every map looks up the
+ * markers it fits in a kd-tree over the markers, then the candidates
+ * of a main triangle are the triangles that fit all three of its
+ * markers. Every node of the kd-tree knows an affine map fitted to
+ * its markers and how far their image points are off it, and is
+ * skipped by maps that differ from that one by more than this and
+ * the tolerance over the node's box. As the fitted maps follow the
+ * image closely, a map only enters the nodes in which its own error
+ * is still within tolerance and a few around them, instead of all.
+ * Both steps run in parallel, every main triangle changes only its
+ * own group.
+ */
+class ProjectionGroupBuilder {
+	// below this many triangles a task is not split any further
+	private static final int TASK_SIZE = 64;
+	
+	private final ProjectionTriangle[] triangles;
+	// plane of all maps and markers
+	private final LocalProjection projection;
+	// affine maps by triangle index, see ProjectionTriangle.getAffineMap()
+	private final double[] maps;
+	// triangles with a map that is not finite, tryAddToProjGroup()
+	// cannot refuse them
+	private final int[] wild;
+	// marker indices of the vertices of every triangle
+	private final int[] vertices;
+	// (east, north, x, y) of every marker
+	private final double[] markers;
+	// tolerance of tryAddToProjGroup() at every vertex
+	private final double[] vertexTolerance;
+	// largest tolerance a main triangle allows at the marker
+	private final double[] tolerance;
+	// kd-tree as permutation of the marker indices, the
+	// median of every range is its node
+	private final int[] order;
+	// per node the bounding box of its subtree's markers,
+	// (min east, min north, max east, max north)
+	private final double[] box;
+	// per node an affine map fitted to its subtree's markers
+	private final double[] reference;
+	// per node the bounding box of the image points minus the
+	// reference map, (min x, min y, max x, max y)
+	private final double[] residual;
+	// per node the largest tolerance in its subtree
+	private final double[] maxTolerance;
+	// marker indices each triangle fits
+	private final int[][] fits;
+	// triangle indices in ascending order by marker they fit
+	private int[][] fittedBy;
+	
+	private ProjectionGroupBuilder(List<ProjectionTriangle> list) {
+		int n = list.size();
+		triangles = list.toArray(new ProjectionTriangle[n]);
+		projection = triangles[0].getProjection();
+		
+		maps = new double[n * 6];
+		double[] map = new double[6];
+		int[] wildTriangles = new int[n];
+		int wildCount = 0;
+		for (int i = 0; i < n; i++) {
+			triangles[i].getAffineMap(projection, map);
+			System.arraycopy(map, 0, maps, i * 6, 6);
+			for (double value : map) {
+				if (Double.isNaN(value) || Double.isInfinite(value)) {
+					wildTriangles[wildCount++] = i;
+					break;
+				}
+			}
+		}
+		wild = Arrays.copyOf(wildTriangles, wildCount);
+		
+		vertices = new int[n * 3];
+		IdentityHashMap<Marker, Integer> indices = new IdentityHashMap<Marker, Integer>();
+		List<Marker> markerList = new ArrayList<Marker>();
+		for (int i = 0; i < n; i++) {
+			for (int v = 0; v < 3; v++) {
+				Marker m = triangles[i].getMarker(v);
+				Integer index = indices.get(m);
+				if (index == null) {
+					index = markerList.size();
+					indices.put(m, index);
+					markerList.add(m);
+				}
+				vertices[3 * i + v] = index;
+			}
+		}
+		int markerCount = markerList.size();
+		markers = new double[markerCount * 4];
+		tolerance = new double[markerCount];
+		vertexTolerance = new double[n * 3];
+		double[] check = new double[9];
+		for (int i = 0; i < n; i++) {
+			triangles[i].getGroupCheckPoints(projection, check);
+			for (int v = 0; v < 3; v++) {
+				int k = vertices[3 * i + v];
+				Point2D imgpoint = markerList.get(k).imgpoint;
+				markers[4 * k] = check[3 * v];
+				markers[4 * k + 1] = check[3 * v + 1];
+				markers[4 * k + 2] = imgpoint.x;
+				markers[4 * k + 3] = imgpoint.y;
+				vertexTolerance[3 * i + v] = check[3 * v + 2];
+				tolerance[k] = Math.max(tolerance[k], check[3 * v + 2]);
+			}
+		}
+		
+		order = new int[markerCount];
+		for (int i = 0; i < markerCount; i++)
+			order[i] = i;
+		box = new double[markerCount * 4];
+		reference = new double[markerCount * 6];
+		residual = new double[markerCount * 4];
+		maxTolerance = new double[markerCount];
+		build(0, markerCount, -1);
+		fits = new int[n][];
+	}
+	
+	/**
+	 * Fills the projection groups, equivalent to calling
+	 * mainPt.tryAddToProjGroup(subPt) for all pairs in list order.
+	 */
+	static void build(List<ProjectionTriangle> list, ForkJoinPool pool) {
+		if (list.size() < 2)
+			return;
+		ProjectionGroupBuilder builder = new ProjectionGroupBuilder(list);
+		builder.run(false, pool);
+		builder.collectFits();
+		builder.run(true, pool);
+	}
+	
+	private void run(boolean isGrouping, ForkJoinPool pool) {
+		BuildTask task = new BuildTask(isGrouping, 0, triangles.length);
+		if (triangles.length <= TASK_SIZE)
+			task.compute();
+		else
+			pool.invoke(task);
+	}
+	
+	private void build(int lo, int hi, int parent) {
+		int mid = (lo + hi) >>> 1;
+		double minEast = Double.POSITIVE_INFINITY, maxEast = Double.NEGATIVE_INFINITY;
+		double minNorth = Double.POSITIVE_INFINITY, maxNorth = Double.NEGATIVE_INFINITY;
+		for (int i = lo; i < hi; i++) {
+			int k = 4 * order[i];
+			minEast = Math.min(minEast, markers[k]);
+			maxEast = Math.max(maxEast, markers[k]);
+			minNorth = Math.min(minNorth, markers[k + 1]);
+			maxNorth = Math.max(maxNorth, markers[k + 1]);
+		}
+		box[4 * mid] = minEast;
+		box[4 * mid + 1] = minNorth;
+		box[4 * mid + 2] = maxEast;
+		box[4 * mid + 3] = maxNorth;
+		if (hi - lo > 1)
+			select(lo, hi - 1, mid, (maxEast - minEast >= maxNorth - minNorth) ? 0 : 1);
+		
+		fitReference(lo, hi, mid, parent);
+		int r = 6 * mid;
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double maxTol = 0;
+		for (int i = lo; i < hi; i++) {
+			int k = 4 * order[i];
+			double x = markers[k + 2] - (reference[r] * markers[k] + reference[r + 1] * markers[k + 1] + reference[r + 2]);
+			double y = markers[k + 3] - (reference[r + 3] * markers[k] + reference[r + 4] * markers[k + 1] + reference[r + 5]);
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+			maxTol = Math.max(maxTol, tolerance[order[i]]);
+		}
+		residual[4 * mid] = minX;
+		residual[4 * mid + 1] = minY;
+		residual[4 * mid + 2] = maxX;
+		residual[4 * mid + 3] = maxY;
+		maxTolerance[mid] = maxTol;
+		
+		if (lo < mid)
+			build(lo, mid, mid);
+		if (mid + 1 < hi)
+			build(mid + 1, hi, mid);
+	}
+	
+	/**
+	 * Least squares fit of an affine map to the markers of a node.
+	 * Any map gives correct bounds, a close one tight bounds, so
+	 * degenerate nodes take their parent's.
+	 */
+	private void fitReference(int lo, int hi, int node, int parent) {
+		int count = hi - lo;
+		double meanEast = 0, meanNorth = 0, meanX = 0, meanY = 0;
+		for (int i = lo; i < hi; i++) {
+			int k = 4 * order[i];
+			meanEast += markers[k];
+			meanNorth += markers[k + 1];
+			meanX += markers[k + 2];
+			meanY += markers[k + 3];
+		}
+		meanEast /= count;
+		meanNorth /= count;
+		meanX /= count;
+		meanY /= count;
+		double ee = 0, en = 0, nn = 0, xe = 0, xn = 0, ye = 0, yn = 0;
+		for (int i = lo; i < hi; i++) {
+			int k = 4 * order[i];
+			double e = markers[k] - meanEast;
+			double n = markers[k + 1] - meanNorth;
+			double x = markers[k + 2] - meanX;
+			double y = markers[k + 3] - meanY;
+			ee += e * e;
+			en += e * n;
+			nn += n * n;
+			xe += x * e;
+			xn += x * n;
+			ye += y * e;
+			yn += y * n;
+		}
+		double det = ee * nn - en * en;
+		int r = 6 * node;
+		if (count >= 3 && det > 1e-9 * (ee + nn) * (ee + nn)) {
+			reference[r] = (xe * nn - xn * en) / det;
+			reference[r + 1] = (xn * ee - xe * en) / det;
+			reference[r + 3] = (ye * nn - yn * en) / det;
+			reference[r + 4] = (yn * ee - ye * en) / det;
+		}
+		else if (parent >= 0) {
+			System.arraycopy(reference, 6 * parent, reference, r, 6);
+			return;
+		}
+		else {
+			reference[r] = reference[r + 1] = reference[r + 3] = reference[r + 4] = 0;
+		}
+		reference[r + 2] = meanX - reference[r] * meanEast - reference[r + 1] * meanNorth;
+		reference[r + 5] = meanY - reference[r + 3] * meanEast - reference[r + 4] * meanNorth;
+	}
+	
+	/**
+	 * Quickselect: partially sorts order[lo..hi] so that
+	 * order[k] holds the marker of rank k in dimension dim.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		while (hi > lo) {
+			double pivot = markers[4 * order[(lo + hi) >>> 1] + dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (markers[4 * order[i] + dim] < pivot) i++;
+				while (markers[4 * order[j] + dim] > pivot) j--;
+				if (i <= j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+	
+	/**
+	 * Finds the markers the map of triangle t fits.
+	 */
+	private void findFits(int t, IntList found) {
+		found.size = 0;
+		if (Arrays.binarySearch(wild, t) < 0)
+			search(0, order.length, t * 6, found);
+		fits[t] = Arrays.copyOf(found.values, found.size);
+	}
+	
+	private void search(int lo, int hi, int map, IntList found) {
+		if (lo >= hi)
+			return;
+		int mid = (lo + hi) >>> 1;
+		if (!mayFit(mid, map))
+			return;
+		int k = order[mid];
+		if (isFit(map, k))
+			found.add(k);
+		search(lo, mid, map, found);
+		search(mid + 1, hi, map, found);
+	}
+	
+	/**
+	 * Interval test of a node: the map minus the reference map over
+	 * the node's box, minus the residuals of its markers, must come
+	 * within the tolerance in x and in y.
+	 */
+	private boolean mayFit(int node, int map) {
+		int r = 6 * node;
+		int b = 4 * node;
+		double e = maxTolerance[node];
+		for (int axis = 0; axis < 2; axis++) {
+			double dEast = maps[map + 3 * axis] - reference[r + 3 * axis];
+			double dNorth = maps[map + 3 * axis + 1] - reference[r + 3 * axis + 1];
+			double d0 = maps[map + 3 * axis + 2] - reference[r + 3 * axis + 2];
+			double min = d0 + Math.min(dEast * box[b], dEast * box[b + 2])
+					+ Math.min(dNorth * box[b + 1], dNorth * box[b + 3]);
+			double max = d0 + Math.max(dEast * box[b], dEast * box[b + 2])
+					+ Math.max(dNorth * box[b + 1], dNorth * box[b + 3]);
+			if (min - residual[b + 2 + axis] > e || max - residual[b + axis] < -e)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Same comparison as tryAddToProjGroup() at one marker, with the
+	 * largest tolerance any triangle allows there.
+	 */
+	private boolean isFit(int map, int marker) {
+		return isFit(map, marker, tolerance[marker]);
+	}
+	
+	private boolean isFit(int map, int marker, double e) {
+		int k = 4 * marker;
+		double dx = maps[map] * markers[k] + maps[map + 1] * markers[k + 1] + maps[map + 2] - markers[k + 2];
+		double dy = maps[map + 3] * markers[k] + maps[map + 4] * markers[k + 1] + maps[map + 5] - markers[k + 3];
+		return !(dx * dx + dy * dy > e * e);
+	}
+	
+	/**
+	 * Inverts fits into fittedBy.
+	 */
+	private void collectFits() {
+		int[] counts = new int[tolerance.length];
+		for (int[] found : fits) {
+			for (int k : found)
+				counts[k]++;
+		}
+		fittedBy = new int[counts.length][];
+		for (int k = 0; k < counts.length; k++) {
+			fittedBy[k] = new int[counts[k]];
+			counts[k] = 0;
+		}
+		for (int t = 0; t < fits.length; t++) {
+			for (int k : fits[t])
+				fittedBy[k][counts[k]++] = t;
+		}
+	}
+	
+	/**
+	 * Calls tryAddToProjGroup() with the triangles that fit all
+	 * markers of the main triangle with its own tolerances, in list
+	 * order.
+	 */
+	private void fillGroup(int main, IntList candidates) {
+		int[] a = fittedBy[vertices[3 * main]];
+		int[] b = fittedBy[vertices[3 * main + 1]];
+		int[] c = fittedBy[vertices[3 * main + 2]];
+		candidates.size = 0;
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length && k < c.length) {
+			int t = Math.max(a[i], Math.max(b[j], c[k]));
+			if (a[i] == t && b[j] == t && c[k] == t) {
+				candidates.add(t);
+				i++;
+				j++;
+				k++;
+				continue;
+			}
+			while (i < a.length && a[i] < t) i++;
+			while (j < b.length && b[j] < t) j++;
+			while (k < c.length && c[k] < t) k++;
+		}
+		if (wild.length > 0) {
+			for (int t : wild)
+				candidates.add(t);
+			Arrays.sort(candidates.values, 0, candidates.size);
+		}
+		
+		ProjectionTriangle mainPt = triangles[main];
+		for (int n = 0; n < candidates.size; n++) {
+			int t = candidates.values[n];
+			if (t != main && isFit(t * 6, vertices[3 * main], vertexTolerance[3 * main])
+					&& isFit(t * 6, vertices[3 * main + 1], vertexTolerance[3 * main + 1])
+					&& isFit(t * 6, vertices[3 * main + 2], vertexTolerance[3 * main + 2]))
+				mainPt.tryAddToProjGroup(triangles[t]);
+		}
+	}
+	
+	/**
+	 * Growable list of indices, one per task.
+	 */
+	private static class IntList {
+		int[] values = new int[16];
+		int size;
+		
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+	}
+	
+	/**
+	 * Finds the fits or fills the groups of a range of triangles.
+	 */
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final boolean isGrouping;
+		final int from;
+		final int to;
+		
+		BuildTask(boolean isGrouping, int from, int to) {
+			this.isGrouping = isGrouping;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= TASK_SIZE) {
+				IntList list = new IntList();
+				for (int i = from; i < to; i++) {
+					if (isGrouping)
+						fillGroup(i, list);
+					else
+						findFits(i, list);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BuildTask(isGrouping, from, mid), new BuildTask(isGrouping, mid, to));
+		}
+	}
+}
@@ -17,6 +17,7 @@
 package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -33,44 +34,77 @@ public class ProjectionTriangle {
 	private Marker a;
 	private Marker b;
 	private Marker c;
-	private double common_divisor;
+	private LocalProjection projection;
+	// Vertices in the projection's plane, in meters
+	private final double[] east = new double[3];
+	private final double[] north = new double[3];
+	// Affine map from the projection's plane to image coords of this
+	// triangle alone: x = xEast * east + xNorth * north + x0, y likewise
+	private double xEast, xNorth, x0;
+	private double yEast, yNorth, y0;
+	// Derivatives of the barycentric coordinates of a and b
+	private double d1East, d1North, d2East, d2North;
+	// Sum of the affine maps of the other projectionGroup members
+	private double groupXEast, groupXNorth, groupX0;
+	private double groupYEast, groupYNorth, groupY0;
+	/** Only to be extended through tryAddToProjGroup() */
 	public List<ProjectionTriangle> projectionGroup;
-	private GpsPoint cachedInput;
-	private FPoint2D cachedResult;
 	
 	public ProjectionTriangle(Marker a, Marker b) {
-		initTriangle(a, b, b.getOrthogonal(a));
+		this(a, b, LocalProjection.forMarkers(Arrays.asList(a, b)));
+	}
+	
+	/**
+	 * @param projection plane for the computations, grouping is
+	 * cheapest among triangles of the same projection
+	 */
+	public ProjectionTriangle(Marker a, Marker b, LocalProjection projection) {
+		initTriangle(a, b, b.getOrthogonal(a), projection);
 
 		pivot = new GpsPoint(a.realpoint, b.realpoint);
 	}
 	
 	public ProjectionTriangle(Marker a, Marker b, Marker c) {
-		initTriangle(a,b,c);
+		initTriangle(a, b, c, LocalProjection.forMarkers(Arrays.asList(a, b, c)));
 		
 		pivot = new GpsPoint(a.realpoint, b.realpoint, c.realpoint);
 	}
 	
 	public ProjectionTriangle(Marker a, Marker b, Marker c, double MaxDissim, double BadTriPanelty, double GoodTriMinAngle) {
+		this(a, b, c, MaxDissim, BadTriPanelty, GoodTriMinAngle,
+				LocalProjection.forMarkers(Arrays.asList(a, b, c)));
+	}
+	
+	/**
+	 * @param projection plane for the computations, grouping is
+	 * cheapest among triangles of the same projection
+	 */
+	public ProjectionTriangle(Marker a, Marker b, Marker c, double MaxDissim, double BadTriPanelty, double GoodTriMinAngle,
+			LocalProjection projection) {
 		MIN_TRIANGLE_ANGLE_SIZE = GoodTriMinAngle;
 		FLAT_TRI_WEIGHT_PENALTY = BadTriPanelty;
 		MAX_DISSIMILARITY_PERCENT = MaxDissim;
 		
-		initTriangle(a,b,c);
+		initTriangle(a, b, c, projection);
 		
 		pivot = new GpsPoint(a.realpoint, b.realpoint, c.realpoint);
 	}
 	
-	private void initTriangle(Marker ma, Marker mb, Marker mc) {
+	private void initTriangle(Marker ma, Marker mb, Marker mc, LocalProjection proj) {
 		a = ma;
 		b = mb;
 		c = mc;
+		projection = proj;
+		for (int i = 0; i < 3; i++) {
+			east[i] = projection.toEast(getMarker(i).realpoint.longitude);
+			north[i] = projection.toNorth(getMarker(i).realpoint.latitude);
+		}
 		
-		common_divisor = ((b.realpoint.latitude - c.realpoint.latitude) * (a.realpoint.longitude - c.realpoint.longitude)
-                +(c.realpoint.longitude - b.realpoint.longitude) * (a.realpoint.latitude - c.realpoint.latitude));
+		initAffineMap();
 		
-		if (!isValidTriangle(a.realpoint.getPlanarDistance(b.realpoint),
-				a.realpoint.getPlanarDistance(c.realpoint),
-				b.realpoint.getPlanarDistance(c.realpoint),
+		if (!isValidTriangle(getPlaneDistance(0, 1),
+				getPlaneDistance(0, 2),
+				getPlaneDistance(1, 2),
 				MIN_TRIANGLE_ANGLE_SIZE)
 		|| !isValidTriangle(a.imgpoint.getDistance(b.imgpoint),
 				a.imgpoint.getDistance(c.imgpoint),
@@ -82,7 +116,19 @@ public class ProjectionTriangle {
 		projectionGroup = new ArrayList<ProjectionTriangle>();
 		projectionGroup.add(this);
 	}
+	
+	/**
+	 * @return distance of the vertices i and j in meters
+	 */
+	private double getPlaneDistance(int i, int j) {
+		double tmp = Math.hypot(east[i] - east[j], north[i] - north[j]);
+		return (tmp != 0) ? tmp : Double.MIN_NORMAL;
+	}
 
+	public LocalProjection getProjection() {
+		return projection;
+	}
+	
 	public GpsPoint getPivot() {
 		return this.pivot;
 	}
@@ -114,6 +160,33 @@ public class ProjectionTriangle {
 		return true;
 	}
 	
+	/**
+	 * Precomputes the barycentric projection as an affine map.
+	 * Formula taken from https://en.wikipedia.org/wiki/Barycentric_coordinate_system#Conversion_between_barycentric_and_Cartesian_coordinates
+	 */
+	private void initAffineMap() {
+		double common_divisor = ((north[1] - north[2]) * (east[0] - east[2])
+                +(east[2] - east[1]) * (north[0] - north[2]));
+		
+		// delta1 = d1East * (east - c.east) + d1North * (north - c.north), delta2 likewise
+		d1East = (north[1] - north[2]) / common_divisor;
+		d1North = (east[2] - east[1]) / common_divisor;
+		d2East = (north[2] - north[0]) / common_divisor;
+		d2North = (east[0] - east[2]) / common_divisor;
+		
+		// x = delta1 * a.x + delta2 * b.x + (1 - delta1 - delta2) * c.x
+		double ax = a.imgpoint.x - c.imgpoint.x;
+		double bx = b.imgpoint.x - c.imgpoint.x;
+		double ay = a.imgpoint.y - c.imgpoint.y;
+		double by = b.imgpoint.y - c.imgpoint.y;
+		xEast = d1East * ax + d2East * bx;
+		xNorth = d1North * ax + d2North * bx;
+		x0 = c.imgpoint.x - xEast * east[2] - xNorth * north[2];
+		yEast = d1East * ay + d2East * by;
+		yNorth = d1North * ay + d2North * by;
+		y0 = c.imgpoint.y - yEast * east[2] - yNorth * north[2];
+	}
+	
 	/**
 	 * Approximates the new image position by averaging
 	 * the projectSingle() of every projectionGroup member.
@@ -121,42 +194,44 @@ public class ProjectionTriangle {
 	 */
 	public FPoint2D project(GpsPoint pos, int ownPriority) {
 		FPoint2D result = new FPoint2D();
-		
-		for (ProjectionTriangle t : projectionGroup) {
-			//own projection is more important than the rest of the projGroup
-			if (t == this)
-				result.fma(t.projectSingle(pos), ownPriority);
-			else
-				result.fma(t.projectSingle(pos), 1);
-		}
-		result.div(projectionGroup.size() - 1 + ownPriority);
-		
+		project(pos.longitude, pos.latitude, ownPriority, result);
 		return result;
 	}
 	
+	/**
+	 * Allocation free variant of project(GpsPoint, int).
+	 * @param result receives the new image position
+	 */
+	public void project(double longitude, double latitude, int ownPriority, FPoint2D result) {
+		projectLocal(projection.toEast(longitude), projection.toNorth(latitude), ownPriority, result);
+	}
+	
+	/**
+	 * project() for a position already in the projection's plane.
+	 * The average of the group's affine maps is again affine and
+	 * was summed up while building the group, so this takes
+	 * constant time whatever the group size.
+	 */
+	void projectLocal(double e, double n, int ownPriority, FPoint2D result) {
+		//own projection is more important than the rest of the projGroup
+		double x = ownPriority * (xEast * e + xNorth * n + x0)
+				+ groupXEast * e + groupXNorth * n + groupX0;
+		double y = ownPriority * (yEast * e + yNorth * n + y0)
+				+ groupYEast * e + groupYNorth * n + groupY0;
+		double div = projectionGroup.size() - 1 + ownPriority;
+		result.x = x / div;
+		result.y = y / div;
+	}
+	
 	/**
 	 * Approximates the new image position using a barycentric coordinate system.
-	 * Formula taken from https://en.wikipedia.org/wiki/Barycentric_coordinate_system#Conversion_between_barycentric_and_Cartesian_coordinates
 	 * @return new image position
 	 */
 	public FPoint2D projectSingle(GpsPoint pos) {
-		if (pos != cachedInput) {
-			double delta1 = ((b.realpoint.latitude - c.realpoint.latitude) * (pos.longitude - c.realpoint.longitude)
-					          +(c.realpoint.longitude - b.realpoint.longitude) * (pos.latitude - c.realpoint.latitude))/ common_divisor;
-			
-			double delta2 = ((c.realpoint.latitude - a.realpoint.latitude) * (pos.longitude - c.realpoint.longitude)
-			                  +(a.realpoint.longitude - c.realpoint.longitude) * (pos.latitude - c.realpoint.latitude))/ common_divisor;
-			
-			double delta3 = 1 - delta1 - delta2;
-			
-			double x = delta1 * a.imgpoint.x + delta2 * b.imgpoint.x + delta3 * c.imgpoint.x;
-			double y = delta1 * a.imgpoint.y + delta2 * b.imgpoint.y + delta3 * c.imgpoint.y;
-			
-			cachedInput = pos;
-			cachedResult = new FPoint2D(x,y);
-		}
-		
-		return cachedResult;
+		double e = projection.toEast(pos.longitude);
+		double n = projection.toNorth(pos.latitude);
+		return new FPoint2D(xEast * e + xNorth * n + x0,
+				yEast * e + yNorth * n + y0);
 	}
 	
 	/**
@@ -166,8 +241,7 @@ public class ProjectionTriangle {
 	 * @return if triangles are similar
 	 */
 	public boolean tryAddToProjGroup(ProjectionTriangle inputTri) {
-		Point2D center = new Point2D((a.imgpoint.x+b.imgpoint.x+c.imgpoint.x)/3,
-									 (a.imgpoint.y+b.imgpoint.y+c.imgpoint.y)/3);
+		Point2D center = getImageCenter();
 		for (int i = 0; i < 3; i++) {
 			double distToCenter = center.getDistance(getMarker(i).imgpoint);
 			double distToNew = getMarker(i).imgpoint.getDistance(inputTri.projectSingle(getMarker(i).realpoint));
@@ -178,9 +252,83 @@ public class ProjectionTriangle {
 		}
 		
 		projectionGroup.add(inputTri);
+		if (inputTri.projection == projection) {
+			groupXEast += inputTri.xEast;
+			groupXNorth += inputTri.xNorth;
+			groupX0 += inputTri.x0;
+			groupYEast += inputTri.yEast;
+			groupYNorth += inputTri.yNorth;
+			groupY0 += inputTri.y0;
+		} else {
+			addConvertedMap(inputTri);
+		}
 		return true;
 	}
 	
+	/**
+	 * Adds the affine map of a triangle with another projection to the
+	 * group sums, see getAffineMap().
+	 */
+	private void addConvertedMap(ProjectionTriangle inputTri) {
+		double[] map = new double[6];
+		inputTri.getAffineMap(projection, map);
+		groupXEast += map[0];
+		groupXNorth += map[1];
+		groupX0 += map[2];
+		groupYEast += map[3];
+		groupYNorth += map[4];
+		groupY0 += map[5];
+	}
+	
+	/**
+	 * Fills map with the affine map of this triangle alone over the
+	 * plane of target, as (xEast, xNorth, x0, yEast, yNorth, y0).
+	 * Both projections are linear in longitude and latitude, so the
+	 * map is exactly affine in the plane of target too.
+	 */
+	void getAffineMap(LocalProjection target, double[] map) {
+		// east = eastFactor * target east + eastOffset, north likewise
+		double eastFactor = projection.getEastScale() / target.getEastScale();
+		double northFactor = projection.getNorthScale() / target.getNorthScale();
+		double eastOffset = projection.toEast(target.getOriginLongitude());
+		double northOffset = projection.toNorth(target.getOriginLatitude());
+		map[0] = xEast * eastFactor;
+		map[1] = xNorth * northFactor;
+		map[2] = xEast * eastOffset + xNorth * northOffset + x0;
+		map[3] = yEast * eastFactor;
+		map[4] = yNorth * northFactor;
+		map[5] = yEast * eastOffset + yNorth * northOffset + y0;
+	}
+	
+	private Point2D getImageCenter() {
+		return new Point2D((a.imgpoint.x+b.imgpoint.x+c.imgpoint.x)/3,
+						   (a.imgpoint.y+b.imgpoint.y+c.imgpoint.y)/3);
+	}
+	
+	/**
+	 * Fills check with one row (east, north, tolerance) per vertex,
+	 * in the plane of target.
+	 * A triangle whose map puts any vertex further than the tolerance
+	 * from its image point is refused by tryAddToProjGroup().
+	 */
+	void getGroupCheckPoints(LocalProjection target, double[] check) {
+		double e[] = new double[3];
+		getGroupTolerances(e);
+		for (int i = 0; i < 3; i++) {
+			check[3 * i] = target.toEast(getMarker(i).realpoint.longitude);
+			check[3 * i + 1] = target.toNorth(getMarker(i).realpoint.latitude);
+			check[3 * i + 2] = e[i];
+		}
+	}
+	
+	private void getGroupTolerances(double[] e) {
+		Point2D center = getImageCenter();
+		for (int i = 0; i < 3; i++) {
+			// the projection is truncated to int before the comparison
+			e[i] = MAX_DISSIMILARITY_PERCENT * center.getDistance(getMarker(i).imgpoint) + 1.5;
+		}
+	}
+	
 	public String toString() {
 		String sim = "";
 		for (ProjectionTriangle t : projectionGroup) {
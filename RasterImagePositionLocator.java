@@ -0,0 +1,371 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Wraps another ImagePositionLocator and answers queries from a
+ * precomputed raster instead of running the wrapped algorithm.
+ *
+ * On every model change the wrapped locator is sampled on a quadtree
+ * lattice over the bounding box of the markers. A cell is split as
+ * long as bilinear interpolation of its corners is off by more than
+ * the pixel tolerance at its center or edge midpoints. Where the
+ * wrapped locator jumps, e.g. when the set of used markers changes,
+ * the error may exceed the tolerance close to the jump. Queries walk
+ * down to their leaf cell and interpolate. Positions outside the box
+ * and cells without a position at every corner are passed to the
+ * wrapped locator.
+ */
+public class RasterImagePositionLocator implements ImagePositionLocator {
+	private static final int DEFAULT_MAX_DEPTH = 10;
+	// interpolation weights of the corners for the test points
+	// center, south, west, east and north of a cell
+	private static final double[][] TEST_WEIGHTS = {
+		{ 0.25, 0.25, 0.25, 0.25 },
+		{ 0.5, 0.5, 0, 0 },
+		{ 0.5, 0, 0.5, 0 },
+		{ 0, 0.5, 0, 0.5 },
+		{ 0, 0, 0.5, 0.5 },
+	};
+
+	private final ImagePositionLocator exact;
+	private final double pixelTolerance;
+	private final int maxDepth;
+	// Replaced as a whole by newMarkerAdded, queries never lock
+	private volatile Raster raster;
+
+	/**
+	 * @param exact locator to sample
+	 * @param pixelTolerance accepted interpolation error in pixels
+	 */
+	public RasterImagePositionLocator(ImagePositionLocator exact, double pixelTolerance) {
+		this(exact, pixelTolerance, DEFAULT_MAX_DEPTH);
+	}
+
+	/**
+	 * @param maxDepth number of times a cell may be split at most,
+	 * cells that still miss the tolerance are passed to exact
+	 */
+	public RasterImagePositionLocator(ImagePositionLocator exact, double pixelTolerance, int maxDepth) {
+		if (pixelTolerance <= 0)
+			throw new IllegalArgumentException("Pixel tolerance must be positive!");
+		this.exact = exact;
+		this.pixelTolerance = pixelTolerance;
+		this.maxDepth = maxDepth;
+		raster = new Raster(exact.getModel());
+	}
+
+	public ImagePositionLocator getExactLocator() {
+		return exact;
+	}
+
+	public double getPixelTolerance() {
+		return pixelTolerance;
+	}
+
+	/**
+	 * @return number of quadtree cells of the current raster
+	 */
+	public int getCellCount() {
+		return raster.cellCount;
+	}
+
+	public Point2D getPointPosition(GpsPoint currentPosition) {
+		if (currentPosition == null)
+			return null;
+		Raster r = raster;
+		FPoint2D result = new FPoint2D();
+		if (!r.lookup(currentPosition.longitude, currentPosition.latitude, result))
+			return exact.getPointPosition(currentPosition);
+		return new Point2D(result);
+	}
+
+	public void getPointPositions(double[] longitudes, double[] latitudes,
+			double[] xs, double[] ys, int offset, int count) {
+		raster.getPointPositions(longitudes, latitudes, xs, ys, offset, count);
+	}
+
+	public LocatorModel getModel() {
+		return raster;
+	}
+
+	public synchronized void newMarkerAdded(List<Marker> markers) {
+		exact.newMarkerAdded(markers);
+		LocatorModel model = exact.getModel();
+
+		double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+		double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+		for (Marker m : markers) {
+			minLon = Math.min(minLon, m.realpoint.longitude);
+			maxLon = Math.max(maxLon, m.realpoint.longitude);
+			minLat = Math.min(minLat, m.realpoint.latitude);
+			maxLat = Math.max(maxLat, m.realpoint.latitude);
+		}
+		if (markers.size() < 3 || !(maxLon > minLon) || !(maxLat > minLat)) {
+			raster = new Raster(model);
+			return;
+		}
+		raster = new Builder(model, minLon, minLat, maxLon - minLon, maxLat - minLat).build();
+	}
+
+	/**
+	 * The quadtree in flat arrays. Never changed after construction.
+	 * Cell 0 is the root, the children of a split cell are stored
+	 * consecutively in the order south west, south east, north west,
+	 * north east, which is also the order of its four corners.
+	 */
+	static final class Raster implements LocatorModel {
+		final LocatorModel exact;
+		final double minLon, minLat;
+		final double spanLon, spanLat;
+		final int cellCount;
+		// index of the first child, 0 for a leaf, -1 for a leaf
+		// that is answered by the exact model
+		final int[] children;
+		// image positions of the corners, 4 per cell
+		final double[] cornerX;
+		final double[] cornerY;
+
+		/**
+		 * Raster without cells, every query goes to exact.
+		 */
+		Raster(LocatorModel exact) {
+			this(exact, 0, 0, 0, 0, new int[0], new double[0], new double[0], 0);
+		}
+
+		Raster(LocatorModel exact, double minLon, double minLat, double spanLon, double spanLat,
+				int[] children, double[] cornerX, double[] cornerY, int cellCount) {
+			this.exact = exact;
+			this.minLon = minLon;
+			this.minLat = minLat;
+			this.spanLon = spanLon;
+			this.spanLat = spanLat;
+			this.children = children;
+			this.cornerX = cornerX;
+			this.cornerY = cornerY;
+			this.cellCount = cellCount;
+		}
+
+		@Override
+		public boolean isSnapshot() {
+			return exact.isSnapshot();
+		}
+
+		/**
+		 * @return false if the position has to be computed by the exact model
+		 */
+		boolean lookup(double longitude, double latitude, FPoint2D result) {
+			if (cellCount == 0)
+				return false;
+			double u = (longitude - minLon) / spanLon;
+			double v = (latitude - minLat) / spanLat;
+			if (!(u >= 0 && u <= 1 && v >= 0 && v <= 1))
+				return false;
+
+			int cell = 0;
+			while (children[cell] > 0) {
+				u *= 2;
+				v *= 2;
+				int quadrant = 0;
+				if (u >= 1) {
+					u -= 1;
+					quadrant = 1;
+				}
+				if (v >= 1) {
+					v -= 1;
+					quadrant += 2;
+				}
+				cell = children[cell] + quadrant;
+			}
+			if (children[cell] < 0)
+				return false;
+
+			int c = 4 * cell;
+			double su = 1 - u, sv = 1 - v;
+			result.x = sv * (su * cornerX[c] + u * cornerX[c + 1]) + v * (su * cornerX[c + 2] + u * cornerX[c + 3]);
+			result.y = sv * (su * cornerY[c] + u * cornerY[c + 1]) + v * (su * cornerY[c + 2] + u * cornerY[c + 3]);
+			return true;
+		}
+
+		public void getPointPositions(double[] longitudes, double[] latitudes,
+				double[] xs, double[] ys, int offset, int count) {
+			FPoint2D result = new FPoint2D();
+			for (int i = offset; i < offset + count; i++) {
+				if (lookup(longitudes[i], latitudes[i], result)) {
+					xs[i] = result.x;
+					ys[i] = result.y;
+				} else {
+					exact.getPointPositions(longitudes, latitudes, xs, ys, i, 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Refines the quadtree one level at a time, so the samples
+	 * of a whole level are computed with one batch projection.
+	 */
+	private final class Builder {
+		final LocatorModel model;
+		final double minLon, minLat;
+		final double spanLon, spanLat;
+
+		int cellCount;
+		int[] children = new int[64];
+		double[] cornerX = new double[256];
+		double[] cornerY = new double[256];
+
+		Builder(LocatorModel model, double minLon, double minLat, double spanLon, double spanLat) {
+			this.model = model;
+			this.minLon = minLon;
+			this.minLat = minLat;
+			this.spanLon = spanLon;
+			this.spanLat = spanLat;
+		}
+
+		Raster build() {
+			// root corners
+			double[] lons = { minLon, minLon + spanLon, minLon, minLon + spanLon };
+			double[] lats = { minLat, minLat, minLat + spanLat, minLat + spanLat };
+			double[] xs = new double[4];
+			double[] ys = new double[4];
+			model.getPointPositions(lons, lats, xs, ys, 0, 4);
+			addCell();
+			System.arraycopy(xs, 0, cornerX, 0, 4);
+			System.arraycopy(ys, 0, cornerY, 0, 4);
+
+			// cells of the current level with their south west corner
+			// and size in units of the root
+			int[] level = { 0 };
+			double[] levelU = { 0 };
+			double[] levelV = { 0 };
+			int levelSize = 1;
+			double size = 1;
+			for (int depth = 0; levelSize > 0; depth++) {
+				// test points: center, south, west, east, north
+				int n = 5 * levelSize;
+				lons = new double[n];
+				lats = new double[n];
+				xs = new double[n];
+				ys = new double[n];
+				double half = size / 2;
+				for (int i = 0; i < levelSize; i++) {
+					setPoint(lons, lats, 5 * i, levelU[i] + half, levelV[i] + half);
+					setPoint(lons, lats, 5 * i + 1, levelU[i] + half, levelV[i]);
+					setPoint(lons, lats, 5 * i + 2, levelU[i], levelV[i] + half);
+					setPoint(lons, lats, 5 * i + 3, levelU[i] + size, levelV[i] + half);
+					setPoint(lons, lats, 5 * i + 4, levelU[i] + half, levelV[i] + size);
+				}
+				model.getPointPositions(lons, lats, xs, ys, 0, n);
+
+				int[] next = new int[4 * levelSize];
+				double[] nextU = new double[4 * levelSize];
+				double[] nextV = new double[4 * levelSize];
+				int nextSize = 0;
+				for (int i = 0; i < levelSize; i++) {
+					int cell = level[i];
+					int missing = countMissing(cell, xs, ys, 5 * i);
+					if (missing == 0 && isAccurate(cell, xs, ys, 5 * i))
+						continue;
+					// cells entirely without positions are not refined
+					if (depth >= maxDepth || missing == 9) {
+						children[cell] = -1;
+						continue;
+					}
+					split(cell, xs, ys, 5 * i);
+					for (int q = 0; q < 4; q++) {
+						next[nextSize] = children[cell] + q;
+						nextU[nextSize] = levelU[i] + ((q & 1) != 0 ? half : 0);
+						nextV[nextSize] = levelV[i] + ((q & 2) != 0 ? half : 0);
+						nextSize++;
+					}
+				}
+				level = next;
+				levelU = nextU;
+				levelV = nextV;
+				levelSize = nextSize;
+				size = half;
+			}
+
+			return new Raster(model, minLon, minLat, spanLon, spanLat,
+					Arrays.copyOf(children, cellCount),
+					Arrays.copyOf(cornerX, 4 * cellCount),
+					Arrays.copyOf(cornerY, 4 * cellCount), cellCount);
+		}
+
+		private void setPoint(double[] lons, double[] lats, int i, double u, double v) {
+			lons[i] = minLon + u * spanLon;
+			lats[i] = minLat + v * spanLat;
+		}
+
+		/**
+		 * @return number of corners and test points without a position
+		 */
+		private int countMissing(int cell, double[] xs, double[] ys, int from) {
+			int missing = 0;
+			for (int i = 4 * cell; i < 4 * cell + 4; i++) {
+				if (Double.isNaN(cornerX[i]) || Double.isNaN(cornerY[i]))
+					missing++;
+			}
+			for (int i = from; i < from + 5; i++) {
+				if (Double.isNaN(xs[i]) || Double.isNaN(ys[i]))
+					missing++;
+			}
+			return missing;
+		}
+
+		/**
+		 * Compares the test points with the interpolation of the corners.
+		 */
+		private boolean isAccurate(int cell, double[] xs, double[] ys, int from) {
+			int c = 4 * cell;
+			for (int i = 0; i < 5; i++) {
+				double x = 0, y = 0;
+				for (int k = 0; k < 4; k++) {
+					x += TEST_WEIGHTS[i][k] * cornerX[c + k];
+					y += TEST_WEIGHTS[i][k] * cornerY[c + k];
+				}
+				if (Math.hypot(x - xs[from + i], y - ys[from + i]) > pixelTolerance)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the four children of cell, their corners are the
+		 * corners of cell and its test points.
+		 */
+		private void split(int cell, double[] xs, double[] ys, int from) {
+			int c = 4 * cell;
+			// 3x3 lattice of the cell, row by row from the south west
+			double[] gx = { cornerX[c], xs[from + 1], cornerX[c + 1],
+							xs[from + 2], xs[from], xs[from + 3],
+							cornerX[c + 2], xs[from + 4], cornerX[c + 3] };
+			double[] gy = { cornerY[c], ys[from + 1], cornerY[c + 1],
+							ys[from + 2], ys[from], ys[from + 3],
+							cornerY[c + 2], ys[from + 4], cornerY[c + 3] };
+			int first = cellCount;
+			children[cell] = first;
+			for (int q = 0; q < 4; q++) {
+				int child = addCell();
+				int base = (q & 1) + 3 * (q >> 1);
+				int[] lattice = { base, base + 1, base + 3, base + 4 };
+				for (int k = 0; k < 4; k++) {
+					cornerX[4 * child + k] = gx[lattice[k]];
+					cornerY[4 * child + k] = gy[lattice[k]];
+				}
+			}
+		}
+
+		private int addCell() {
+			if (cellCount == children.length) {
+				children = Arrays.copyOf(children, 2 * cellCount);
+				cornerX = Arrays.copyOf(cornerX, 8 * cellCount);
+				cornerY = Arrays.copyOf(cornerY, 8 * cellCount);
+			}
+			children[cellCount] = 0;
+			return cellCount++;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TraceSink keeping the latest events in a fixed size ring.
+ * Writers claim a slot with one atomic increment and never wait,
+ * older events are overwritten. dump() skips slots that are
+ * being overwritten while it reads them.
+ */
+public class RingBufferTraceSink implements TraceSink {
+	private static final TraceEvent[] EVENTS = TraceEvent.values();
+	
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	// sequence number + 1 of the event in a slot, 0 while it is written
+	private final AtomicLongArray published;
+	private final int[] events;
+	private final long[] ids;
+	private final long[] nanos;
+	private final double[] values;
+	
+	/**
+	 * @param capacity number of events kept, rounded up to a power of two
+	 */
+	public RingBufferTraceSink(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		mask = size - 1;
+		published = new AtomicLongArray(size);
+		events = new int[size];
+		ids = new long[size];
+		nanos = new long[size];
+		values = new double[3 * size];
+	}
+	
+	public int getCapacity() {
+		return mask + 1;
+	}
+	
+	/**
+	 * @return number of events recorded so far, including overwritten ones
+	 */
+	public long getEventCount() {
+		return next.get();
+	}
+	
+	public void trace(TraceEvent event, long id, double a, double b, double c) {
+		long seq = next.getAndIncrement();
+		int slot = (int) seq & mask;
+		published.set(slot, 0);
+		events[slot] = event.ordinal();
+		ids[slot] = id;
+		nanos[slot] = System.nanoTime();
+		values[3 * slot] = a;
+		values[3 * slot + 1] = b;
+		values[3 * slot + 2] = c;
+		published.set(slot, seq + 1);
+	}
+	
+	/**
+	 * Prints the kept events, oldest first, one per line:
+	 * sequence number, System.nanoTime(), event, id and values.
+	 * May be called while events are recorded.
+	 */
+	public void dump(PrintStream out) {
+		long end = next.get();
+		for (long seq = Math.max(0, end - mask - 1); seq < end; seq++) {
+			int slot = (int) seq & mask;
+			if (published.get(slot) != seq + 1)
+				continue;
+			int event = events[slot];
+			long id = ids[slot];
+			long time = nanos[slot];
+			double a = values[3 * slot];
+			double b = values[3 * slot + 1];
+			double c = values[3 * slot + 2];
+			// overwritten while reading
+			if (published.get(slot) != seq + 1)
+				continue;
+			out.println(seq + " " + time + " " + EVENTS[event] + " " + id + " " + a + " " + b + " " + c);
+		}
+	}
+}
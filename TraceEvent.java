@@ -0,0 +1,22 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+/**
+ * Kinds of events given to a TraceSink, with the meaning
+ * of the id and value arguments.
+ */
+public enum TraceEvent {
+	/** Position query started. id: GPS time, a: longitude, b: latitude */
+	QUERY,
+	/** Triangle used for a query. id: triangle index, a: x, b: y, c: weight */
+	TRIANGLE,
+	/** Position query finished. a: x, b: y, c: sum of weights */
+	RESULT,
+	/** Marker used for a model rebuild. id: marker index, a: longitude, b: latitude */
+	MARKER,
+	/** Model rebuilt. id: marker count, a: triangle count */
+	MODEL,
+	/** GpsPoint rejected as too fast. id: GPS time, a: longitude, b: latitude, c: speed in m/s */
+	REJECTED,
+	/** Exception caught by the ingest worker. id: GPS time of the point, 0 for the host app callback */
+	INGEST_ERROR
+}
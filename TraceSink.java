@@ -0,0 +1,17 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+/**
+ * Receives debug events of the locators and the LocationDataManager.
+ * Called from the query path, so implementations must be fast,
+ * must not block and must be safe to use from several threads.
+ * 
+ * @see IPLSettingsContainer#getTraceSink()
+ */
+public interface TraceSink {
+
+	/**
+	 * Records one event, see TraceEvent for the meaning
+	 * of the arguments. Unused values are 0.
+	 */
+	public void trace(TraceEvent event, long id, double a, double b, double c);
+}
@@ -16,35 +16,110 @@
 
 package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * Class for listing and managing meta information about
- * track files in a directory. Saves data in a track.conf file
- * in the passed directory.
+ * track files in a directory. Saves data in a track.catalog
+ * file in the passed directory. Changes are appended to the
+ * track.catalog.log.&lt;stripe&gt; files and folded into
+ * track.catalog when the logs grow. A track.conf file of older
+ * versions is converted.
+ * 
+ * Thread safe. Reads do not lock. Changes lock one of STRIPES
+ * stripes chosen by identifier, each with its own log file, so
+ * changes of different entries rarely wait for each other.
+ * Use open to get the instance of a directory.
+ * 
+ * Every entry has a TrackSummary of its track, updated when a
+ * handler from acquireLDMIO is saved or one from
+ * getJournal compacts. getMapsAt finds the maps that cover a
+ * point through an R-tree over the summaries.
  */
 public class TrackDB implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final String configFileName = "track.conf";
-	private static final int versionNumber = 0;
+	private static final String catalogFileName = "track.catalog";
+	private static final String logFileName = "track.catalog.log.";
+	private static final int versionNumber = 2;
 	private static final int FIRST_IDENTIFIER = 1;
+	// log records before compaction, at least the number of entries
+	private static final int MIN_LOG_RECORDS = 256;
+	// power of two
+	private static final int STRIPES = 8;
+	
+	// log record types
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte SUMMARY = 3;
 	
 	//Singleton db
 	public static TrackDB main = null;
+	// instances by canonical directory
+	private static final ConcurrentHashMap<File, TrackDB> instances =
+			new ConcurrentHashMap<File, TrackDB>();
 	
 	private File baseDir;
 	private File dbFile;
+	private File catalogFile;
+	
+	private ConcurrentHashMap<Long, TrackDBEntry> maps;
+	private AtomicLong lastIdentifier;
 	
-	private HashMap<Long, TrackDBEntry> maps;
-	private long lastIdentifier;
+	private transient Stripe[] stripes;
+	// records in all log files
+	private transient AtomicInteger logRecords = new AtomicInteger();
+	// open batches of the current thread, its records stay pending
+	// until the last one ends
+	private transient ThreadLocal<int[]> batchDepth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	private transient LDMIOTrackCache handlers = new LDMIOTrackCache();
+	// index of the summaries, rebuilt on the next query when its
+	// version is behind
+	private transient volatile CoverageTree coverage;
+	// counted up on every change of the summaries
+	private transient AtomicLong coverageVersion = new AtomicLong();
+	private transient Object coverageLock = new Object();
+	
+	/**
+	 * Lock and log file for the entries with
+	 * identifier % STRIPES == index.
+	 */
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final File file;
+		final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		FileOutputStream out;
+		
+		Stripe(File file) {
+			this.file = file;
+		}
+	}
 	
 	/**
 	 * Tries to load a TrackDB from the baseDirectory
@@ -66,7 +141,7 @@ public class TrackDB implements Serializable {
 				return false;
 			}
 			
-			main = new TrackDB(baseDirectory);
+			main = open(baseDirectory);
 			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -74,14 +149,40 @@ public class TrackDB implements Serializable {
 		}
 	}
 	
+	/**
+	 * @return the TrackDB of baseDirectory, loaded on the first call.
+	 * Independent of main.
+	 * @throws IOException if baseDirectory is no directory
+	 * or the catalog cannot be read
+	 */
+	public static TrackDB open(File baseDirectory) throws IOException {
+		if (!baseDirectory.isDirectory())
+			throw new IOException("Not a directory: " + baseDirectory);
+		File key = baseDirectory.getCanonicalFile();
+		TrackDB db = instances.get(key);
+		if (db != null)
+			return db;
+		synchronized (instances) {
+			db = instances.get(key);
+			if (db == null) {
+				db = new TrackDB(baseDirectory);
+				instances.put(key, db);
+			}
+			return db;
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	private boolean versionDependendLoad(ObjectInputStream ois) throws IOException {
 		try {
 			int thisVersion = ois.readInt();
 			switch (thisVersion) {
 			case 0:
-				maps = (HashMap<Long, TrackDBEntry>) ois.readObject();
-				lastIdentifier = ois.readLong();
+				HashMap<Long, TrackDBEntry> old = (HashMap<Long, TrackDBEntry>) ois.readObject();
+				maps = new ConcurrentHashMap<Long, TrackDBEntry>(old);
+				for (TrackDBEntry entry : maps.values())
+					entry.db = this;
+				lastIdentifier = new AtomicLong(ois.readLong());
 				break;
 			default:
 				System.err.println("Unsupported version number: " + thisVersion + "!");
@@ -95,42 +196,167 @@ public class TrackDB implements Serializable {
 	}
 	
 	/**
-	 * loads track.conf file from dbDir
+	 * Reads the catalog written by save.
+	 */
+	private boolean loadCatalog(DataInputStream dis) throws IOException {
+		int thisVersion = dis.readInt();
+		if (thisVersion != 1 && thisVersion != 2) {
+			System.err.println("Unsupported version number: " + thisVersion + "!");
+			return false;
+		}
+		lastIdentifier = new AtomicLong(dis.readLong());
+		int count = dis.readInt();
+		maps = new ConcurrentHashMap<Long, TrackDBEntry>(count * 2);
+		for (int i = 0; i < count; i++) {
+			TrackDBEntry entry = new TrackDBEntry(this, dis.readLong());
+			entry.mapname = dis.readUTF();
+			// version 1 has no summaries
+			if (thisVersion >= 2 && dis.readBoolean())
+				entry.summary = TrackSummary.read(dis);
+			maps.put(entry.getIdentifier(), entry);
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the records of a log. Stops at a torn record.
+	 * @return false if there was one
+	 */
+	private boolean replayLog(DataInputStream dis) throws IOException {
+		byte[] record = new byte[64];
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			try {
+				length = dis.readInt();
+			} catch (EOFException e) {
+				return true;
+			}
+			try {
+				int checksum = dis.readInt();
+				if (length < 0)
+					return false;
+				if (length > record.length)
+					record = new byte[length];
+				dis.readFully(record, 0, length);
+				crc.reset();
+				crc.update(record, 0, length);
+				if ((int) crc.getValue() != checksum)
+					return false;
+			} catch (EOFException e) {
+				return false;
+			}
+			
+			DataInputStream rec = new DataInputStream(
+					new ByteArrayInputStream(record, 0, length));
+			byte type = rec.readByte();
+			long identifier = rec.readLong();
+			if (type == PUT) {
+				TrackDBEntry entry = maps.get(identifier);
+				if (entry == null) {
+					entry = new TrackDBEntry(this, identifier);
+					maps.put(identifier, entry);
+				}
+				entry.mapname = rec.readUTF();
+				if (identifier >= lastIdentifier.get())
+					lastIdentifier.set(identifier + 1);
+			} else if (type == DELETE) {
+				maps.remove(identifier);
+			} else if (type == SUMMARY) {
+				TrackDBEntry entry = maps.get(identifier);
+				if (entry != null)
+					entry.summary = TrackSummary.read(rec);
+			}
+			logRecords.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * loads track.catalog and its logs from dbDir,
+	 * or converts a track.conf file
 	 * @throws IOException
 	 */
 	TrackDB(File dbDir) throws IOException {
 		baseDir = dbDir;
 		dbFile = new File(dbDir + File.separator + configFileName);
-		boolean isFileValid = dbFile.isFile();
+		catalogFile = new File(dbDir + File.separator + catalogFileName);
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(new File(dbDir + File.separator + logFileName + i));
+		boolean isFileValid = catalogFile.isFile();
 		
 		if (isFileValid) {
-			System.err.println("All OK.");
+			DataInputStream dis = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(catalogFile)));
+			try {
+				isFileValid = loadCatalog(dis);
+			} finally {
+				dis.close();
+			}
+			boolean isLogValid = true;
+			for (Stripe s : stripes) {
+				if (!isFileValid || !s.file.isFile())
+					continue;
+				dis = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(s.file)));
+				try {
+					if (!replayLog(dis)) {
+						System.err.println("Ignoring torn record in " + s.file);
+						isLogValid = false;
+					}
+				} finally {
+					dis.close();
+				}
+			}
+			// later appends would follow the torn record
+			if (!isLogValid)
+				save();
+		} else if (dbFile.isFile()) {
+			System.err.println("Converting " + dbFile);
 			FileInputStream fis = new FileInputStream(dbFile);
 			ObjectInputStream ois = new ObjectInputStream(fis);
 			isFileValid = versionDependendLoad(ois);
 			ois.close();
 			fis.close();
+			if (isFileValid)
+				save();
 		}
 		
 		if (!isFileValid) {
-			System.err.println("Could not read file. Creatin new trackDB in " + dbFile);
-			maps = new HashMap<Long, TrackDBEntry>();
-			lastIdentifier = FIRST_IDENTIFIER;
+			System.err.println("Could not read file. Creatin new trackDB in " + catalogFile);
+			maps = new ConcurrentHashMap<Long, TrackDBEntry>();
+			lastIdentifier = new AtomicLong(FIRST_IDENTIFIER);
 		}
+		startBackfill();
+	}
+	
+	private Stripe getStripe(long identifier) {
+		return stripes[(int) identifier & (STRIPES - 1)];
 	}
 	
 	/**
-	 * Tries to delete map
+	 * Tries to delete map with its .track file and journals
 	 * @return true if map was deleted. False otherwise.
 	 */
 	public boolean delete(TrackDBEntry map) {
-		if (maps.remove(map.getIdentifier()) != null) {
-			save();
-			new File(baseDir + File.separator + map.getIdentifier() + ".track").delete();
-			return true;
-		} else {
-			return false;
+		Stripe s = getStripe(map.getIdentifier());
+		boolean isRemoved;
+		s.lock.lock();
+		try {
+			isRemoved = maps.remove(map.getIdentifier()) != null;
+			if (isRemoved)
+				log(s, DELETE, map);
+		} finally {
+			s.lock.unlock();
 		}
+		if (!isRemoved)
+			return false;
+		handlers.remove(map.getIdentifier());
+		coverageVersion.incrementAndGet();
+		if (!LDMIOJournal.deleteFiles(getTrackPath(map)))
+			System.err.println("Could not delete all files of " + getTrackPath(map));
+		compactIfNeeded();
+		return true;
 	}
 	
 	/**
@@ -141,47 +367,358 @@ public class TrackDB implements Serializable {
 	}
 	
 	/**
-	 * @return The TrackLDMIO object referenced by map
+	 * @return The TrackLDMIO object referenced by map, for the
+	 * caller alone. A handler kept by getHandlerCache is handed
+	 * over instead of reading the file again, but the returned one
+	 * is never cached.
 	 * @throws IOException
+	 * @deprecated use acquireLDMIO and releaseLDMIO, which keep the
+	 * handler in the cache for the next call.
 	 */
+	@Deprecated
 	public LDMIOTrack getLDMIO(TrackDBEntry map) throws IOException {
-		return new LDMIOTrack(baseDir + File.separator + map.getIdentifier() + ".track");
+		return handlers.take(map, getTrackPath(map));
+	}
+	
+	/**
+	 * @return the cached TrackLDMIO object referenced by map, pinned
+	 * to the calling thread until releaseLDMIO. Other threads wait
+	 * for it meanwhile; the cache neither evicts nor saves it.
+	 * Calls may be nested. Always release it in a finally block:
+	 * <pre>
+	 * LDMIOTrack track = db.acquireLDMIO(map);
+	 * try {
+	 *     ...
+	 * } finally {
+	 *     db.releaseLDMIO(map);
+	 * }
+	 * </pre>
+	 * Evicted handlers are saved if modified.
+	 * @throws IOException
+	 */
+	public LDMIOTrack acquireLDMIO(TrackDBEntry map) throws IOException {
+		return handlers.acquire(map, getTrackPath(map));
+	}
+	
+	/**
+	 * Unpins the handler from acquireLDMIO.
+	 */
+	public void releaseLDMIO(TrackDBEntry map) {
+		handlers.release(map.getIdentifier());
+	}
+	
+	/**
+	 * @return new journaling handler for the track of map, its
+	 * compactions update the summary of map. Not cached; do not
+	 * use it together with acquireLDMIO for the same map.
+	 * @throws IOException
+	 */
+	public LDMIOJournal getJournal(TrackDBEntry map) throws IOException {
+		return new LDMIOJournal(getTrackPath(map), map);
+	}
+	
+	private String getTrackPath(TrackDBEntry map) {
+		return baseDir + File.separator + map.getIdentifier() + ".track";
+	}
+	
+	/**
+	 * @return the cache of the handlers returned by acquireLDMIO,
+	 * for limits and statistics
+	 */
+	public LDMIOTrackCache getHandlerCache() {
+		return handlers;
 	}
 	
 	/**
 	 * Creates and returns new entry
 	 */
 	public TrackDBEntry createMap() {
-		Long currentIdentifier = lastIdentifier++;
-		TrackDBEntry tmp = new TrackDBEntry(currentIdentifier);
-		maps.put(currentIdentifier, tmp);
-		save();
+		long currentIdentifier = lastIdentifier.getAndIncrement();
+		TrackDBEntry tmp = new TrackDBEntry(this, currentIdentifier);
+		Stripe s = getStripe(currentIdentifier);
+		s.lock.lock();
+		try {
+			maps.put(currentIdentifier, tmp);
+			log(s, PUT, tmp);
+		} finally {
+			s.lock.unlock();
+		}
+		compactIfNeeded();
 		return tmp;
 	}
 	
 	/**
-	 * @return all entries
+	 * @return all entries, a live view that may be
+	 * iterated while entries change
 	 */
 	public Collection<TrackDBEntry> getAllMaps() {
 		return maps.values();
 	}
 	
 	/**
-	 * save all entries
+	 * Called by TrackDBEntry.setMapname.
+	 */
+	void rename(TrackDBEntry map, String mapname) {
+		Stripe s = getStripe(map.getIdentifier());
+		s.lock.lock();
+		try {
+			map.mapname = mapname;
+			if (maps.get(map.getIdentifier()) == map)
+				log(s, PUT, map);
+		} finally {
+			s.lock.unlock();
+		}
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Called by TrackDBEntry.setSummary.
+	 */
+	void setSummary(TrackDBEntry map, TrackSummary summary) {
+		Stripe s = getStripe(map.getIdentifier());
+		s.lock.lock();
+		try {
+			map.summary = summary;
+			if (maps.get(map.getIdentifier()) == map)
+				log(s, SUMMARY, map);
+		} finally {
+			s.lock.unlock();
+		}
+		coverageVersion.incrementAndGet();
+		compactIfNeeded();
+	}
+	
+	/**
+	 * @return the maps whose summary contains p, see
+	 * TrackSummary.contains. Does not open any track file; maps
+	 * of converted catalogs are found once the background thread
+	 * started by open has computed their summary.
+	 */
+	public List<TrackDBEntry> getMapsAt(GpsPoint p) {
+		List<TrackDBEntry> result = new ArrayList<TrackDBEntry>();
+		getCoverage().query(p.longitude, p.latitude, result);
+		return result;
+	}
+	
+	private CoverageTree getCoverage() {
+		CoverageTree tree = coverage;
+		if (tree != null && tree.version == coverageVersion.get())
+			return tree;
+		synchronized (coverageLock) {
+			// changes during the build count up the version again
+			long version = coverageVersion.get();
+			tree = coverage;
+			if (tree == null || tree.version != version) {
+				tree = new CoverageTree(maps.values(), version);
+				coverage = tree;
+			}
+			return tree;
+		}
+	}
+	
+	/**
+	 * Starts a daemon thread that runs backfillSummaries if
+	 * entries lack a summary.
+	 */
+	private void startBackfill() {
+		boolean isMissing = false;
+		for (TrackDBEntry entry : maps.values())
+			isMissing |= entry.getSummary() == null;
+		if (!isMissing)
+			return;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				backfillSummaries();
+			}
+		}, "TrackDB backfill");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Computes the summaries that catalogs of older versions lack
+	 * from the track files, one track at a time. Journals are not
+	 * replayed, their next compaction updates the summary.
+	 */
+	private void backfillSummaries() {
+		beginBatch();
+		try {
+			for (TrackDBEntry entry : maps.values()) {
+				File trackfile = new File(getTrackPath(entry));
+				if (entry.getSummary() != null || !trackfile.isFile())
+					continue;
+				try {
+					LDMIOTrack track = new LDMIOTrack(trackfile.getPath());
+					setMissingSummary(entry, TrackSummary.of(track.getGpsTrack(), track.getAllMarkers()));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			endBatch();
+		}
+	}
+	
+	/**
+	 * Like setSummary, unless a save set one meanwhile.
+	 */
+	private void setMissingSummary(TrackDBEntry map, TrackSummary summary) {
+		Stripe s = getStripe(map.getIdentifier());
+		s.lock.lock();
+		try {
+			if (map.summary != null)
+				return;
+			map.summary = summary;
+			if (maps.get(map.getIdentifier()) == map)
+				log(s, SUMMARY, map);
+		} finally {
+			s.lock.unlock();
+		}
+		coverageVersion.incrementAndGet();
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Starts collecting the changes of the current thread until the
+	 * matching endBatch, which writes them at once. Calls may be
+	 * nested. Other threads are not affected, their changes may
+	 * write the collected ones earlier. Always end a batch in a
+	 * finally block:
+	 * <pre>
+	 * db.beginBatch();
+	 * try {
+	 *     ...
+	 * } finally {
+	 *     db.endBatch();
+	 * }
+	 * </pre>
+	 */
+	public void beginBatch() {
+		batchDepth.get()[0]++;
+	}
+	
+	/**
+	 * Writes the changes since the outermost beginBatch of the
+	 * current thread.
+	 */
+	public void endBatch() {
+		int[] depth = batchDepth.get();
+		if (depth[0] == 0)
+			throw new IllegalStateException("endBatch without beginBatch");
+		if (--depth[0] > 0)
+			return;
+		for (Stripe s : stripes) {
+			s.lock.lock();
+			try {
+				flushLog(s);
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Adds a record to the stripe, whose lock must be held.
+	 */
+	private void log(Stripe s, byte type, TrackDBEntry map) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+			DataOutputStream rec = new DataOutputStream(bytes);
+			rec.writeByte(type);
+			rec.writeLong(map.getIdentifier());
+			if (type == PUT)
+				rec.writeUTF(map.getMapname());
+			else if (type == SUMMARY)
+				map.getSummary().write(rec);
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			DataOutputStream dos = new DataOutputStream(s.pending);
+			dos.writeInt(bytes.size());
+			dos.writeInt((int) crc.getValue());
+			bytes.writeTo(dos);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		logRecords.incrementAndGet();
+		if (batchDepth.get()[0] == 0)
+			flushLog(s);
+	}
+	
+	/**
+	 * Appends the pending records of the stripe to its log.
+	 */
+	private void flushLog(Stripe s) {
+		if (s.pending.size() == 0)
+			return;
+		try {
+			if (s.out == null)
+				s.out = new FileOutputStream(s.file, true);
+			s.pending.writeTo(s.out);
+			s.pending.reset();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Compacts the catalog if the logs got too long.
+	 */
+	private void compactIfNeeded() {
+		if (batchDepth.get()[0] == 0
+				&& logRecords.get() > Math.max(MIN_LOG_RECORDS, maps.size()))
+			save();
+	}
+	
+	/**
+	 * Writes all entries to track.catalog via a temporary file
+	 * and clears the logs. Blocks all changes meanwhile.
 	 */
 	public void save() {
+		for (Stripe s : stripes)
+			s.lock.lock();
 		try {
-			FileOutputStream fis = new FileOutputStream(dbFile);
-			ObjectOutputStream oos = new ObjectOutputStream(fis);
-			
-			oos.writeInt(versionNumber);
-			oos.writeObject(maps);
-			oos.writeLong(lastIdentifier);
-			
-			oos.close();
-			fis.close();
+			writeCatalog();
+			for (Stripe s : stripes) {
+				if (s.out != null) {
+					s.out.close();
+					s.out = null;
+				}
+				s.file.delete();
+				s.pending.reset();
+			}
+			logRecords.set(0);
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			for (Stripe s : stripes)
+				s.lock.unlock();
+		}
+	}
+	
+	private void writeCatalog() throws IOException {
+		File tmpFile = new File(catalogFile + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(versionNumber);
+			dos.writeLong(lastIdentifier.get());
+			dos.writeInt(maps.size());
+			for (TrackDBEntry entry : maps.values()) {
+				dos.writeLong(entry.getIdentifier());
+				dos.writeUTF(entry.getMapname());
+				TrackSummary summary = entry.getSummary();
+				dos.writeBoolean(summary != null);
+				if (summary != null)
+					summary.write(dos);
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
 		}
+		LDMIOTrack.replaceFile(tmpFile, catalogFile);
 	}
 }
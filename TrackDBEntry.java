@@ -26,9 +26,14 @@ public class TrackDBEntry implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	private Long identifier;
-	private String mapname;
+	volatile String mapname;
+	// owner, logs changes
+	transient TrackDB db;
+	// null until the track was saved
+	transient volatile TrackSummary summary;
 	
-	TrackDBEntry(Long identifier) {
+	TrackDBEntry(TrackDB db, Long identifier) {
+		this.db = db;
 		this.identifier = identifier;
 		mapname = "";
 	}
@@ -41,8 +46,28 @@ public class TrackDBEntry implements Serializable {
 		return mapname;
 	}
 	
+	/**
+	 * @return overview of the track as of its last save,
+	 * null if it was not saved yet
+	 */
+	public TrackSummary getSummary() {
+		return summary;
+	}
+	
+	/**
+	 * Called by LDMIOTrack after a save.
+	 */
+	void setSummary(TrackSummary summary) {
+		if (db == null)
+			this.summary = summary;
+		else
+			db.setSummary(this, summary);
+	}
+	
 	public void setMapname(String mapname) {
-		this.mapname = mapname;
-		TrackDB.main.save();
+		if (db == null)
+			this.mapname = mapname;
+		else
+			db.rename(this, mapname);
 	}
 }
\ No newline at end of file
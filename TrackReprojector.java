@@ -0,0 +1,106 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Projects whole GPS tracks onto the image, e.g. after
+ * new markers changed the model. The track is split into
+ * chunks that are projected in parallel against one
+ * LocatorModel snapshot. Models that are no snapshot are
+ * used serially on the calling thread.
+ */
+public class TrackReprojector {
+	// below this many points a chunk is not split any further
+	static final int CHUNK_SIZE = 4096;
+	
+	private static ForkJoinPool defaultPool;
+	
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Uses a pool shared by all TrackReprojectors
+	 * with one thread per core.
+	 */
+	public TrackReprojector() {
+		this(getDefaultPool());
+	}
+	
+	public TrackReprojector(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * @return the pool for projection work when none was given
+	 */
+	static synchronized ForkJoinPool getDefaultPool() {
+		if (defaultPool == null)
+			defaultPool = new ForkJoinPool();
+		return defaultPool;
+	}
+	
+	/**
+	 * Projects track with the current knowledge of locator.
+	 */
+	public ProjectedTrack reproject(ImagePositionLocator locator, List<GpsPoint> track) {
+		int size = track.size();
+		double[] longitudes = new double[size];
+		double[] latitudes = new double[size];
+		for (int i = 0; i < size; i++) {
+			GpsPoint p = track.get(i);
+			longitudes[i] = p.longitude;
+			latitudes[i] = p.latitude;
+		}
+		return reproject(locator.getModel(), longitudes, latitudes);
+	}
+	
+	/**
+	 * Projects the positions given by longitudes and latitudes.
+	 * The arrays must not be changed while this runs.
+	 */
+	public ProjectedTrack reproject(LocatorModel model, double[] longitudes, double[] latitudes) {
+		double[] xs = new double[longitudes.length];
+		double[] ys = new double[longitudes.length];
+		ChunkTask task = new ChunkTask(model, longitudes, latitudes, xs, ys, 0, longitudes.length);
+		if (longitudes.length <= CHUNK_SIZE || !model.isSnapshot())
+			task.compute();
+		else
+			pool.invoke(task);
+		return new ProjectedTrack(xs, ys);
+	}
+	
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final LocatorModel model;
+		final double[] longitudes;
+		final double[] latitudes;
+		final double[] xs;
+		final double[] ys;
+		final int offset;
+		final int count;
+		
+		ChunkTask(LocatorModel model, double[] longitudes, double[] latitudes,
+				double[] xs, double[] ys, int offset, int count) {
+			this.model = model;
+			this.longitudes = longitudes;
+			this.latitudes = latitudes;
+			this.xs = xs;
+			this.ys = ys;
+			this.offset = offset;
+			this.count = count;
+		}
+		
+		@Override
+		protected void compute() {
+			if (count <= CHUNK_SIZE || !model.isSnapshot()) {
+				model.getPointPositions(longitudes, latitudes, xs, ys, offset, count);
+				return;
+			}
+			int half = count / 2;
+			invokeAll(new ChunkTask(model, longitudes, latitudes, xs, ys, offset, half),
+					new ChunkTask(model, longitudes, latitudes, xs, ys, offset + half, count - half));
+		}
+	}
+}
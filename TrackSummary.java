@@ -0,0 +1,313 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable overview of a track kept in the TrackDB catalog:
+ * counts, time span, bounding box of all GpsPoints and convex
+ * hull of the markers. The hull is the area a map covers; with
+ * fewer than three markers the bounding box is used instead.
+ */
+public final class TrackSummary {
+	private final int markerCount;
+	private final int fixCount;
+	private final long firstTime;
+	private final long lastTime;
+	// NaN if there are no GpsPoints
+	private final double minLongitude;
+	private final double minLatitude;
+	private final double maxLongitude;
+	private final double maxLatitude;
+	// longitude, latitude pairs, counter-clockwise
+	private final double[] hull;
+	// bounding box of the covered area
+	final double coverMinLongitude;
+	final double coverMinLatitude;
+	final double coverMaxLongitude;
+	final double coverMaxLatitude;
+
+	private TrackSummary(int markerCount, int fixCount, long firstTime, long lastTime,
+			double minLongitude, double minLatitude, double maxLongitude, double maxLatitude,
+			double[] hull) {
+		this.markerCount = markerCount;
+		this.fixCount = fixCount;
+		this.firstTime = firstTime;
+		this.lastTime = lastTime;
+		this.minLongitude = minLongitude;
+		this.minLatitude = minLatitude;
+		this.maxLongitude = maxLongitude;
+		this.maxLatitude = maxLatitude;
+		this.hull = hull;
+		if (hull.length < 6) {
+			coverMinLongitude = minLongitude;
+			coverMinLatitude = minLatitude;
+			coverMaxLongitude = maxLongitude;
+			coverMaxLatitude = maxLatitude;
+		} else {
+			double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+					Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			for (int i = 0; i < hull.length; i += 2) {
+				box[0] = Math.min(box[0], hull[i]);
+				box[1] = Math.min(box[1], hull[i + 1]);
+				box[2] = Math.max(box[2], hull[i]);
+				box[3] = Math.max(box[3], hull[i + 1]);
+			}
+			coverMinLongitude = box[0];
+			coverMinLatitude = box[1];
+			coverMaxLongitude = box[2];
+			coverMaxLatitude = box[3];
+		}
+	}
+
+	/**
+	 * Bounds of the fixes of a track, extended fix by fix, so a
+	 * summary of a growing track does not have to read it again.
+	 */
+	static final class FixBounds {
+		int count;
+		long firstTime = Long.MAX_VALUE;
+		long lastTime = Long.MIN_VALUE;
+		double minLongitude = Double.POSITIVE_INFINITY;
+		double minLatitude = Double.POSITIVE_INFINITY;
+		double maxLongitude = Double.NEGATIVE_INFINITY;
+		double maxLatitude = Double.NEGATIVE_INFINITY;
+
+		static FixBounds of(GpsTrack track) {
+			FixBounds bounds = new FixBounds();
+			GpsTrack.Cursor c = track.cursor();
+			while (c.next())
+				bounds.add(c.getTime(), c.getLongitude(), c.getLatitude());
+			return bounds;
+		}
+
+		void add(long time, double longitude, double latitude) {
+			count++;
+			firstTime = Math.min(firstTime, time);
+			lastTime = Math.max(lastTime, time);
+			minLongitude = Math.min(minLongitude, longitude);
+			maxLongitude = Math.max(maxLongitude, longitude);
+			minLatitude = Math.min(minLatitude, latitude);
+			maxLatitude = Math.max(maxLatitude, latitude);
+		}
+
+		FixBounds copy() {
+			FixBounds bounds = new FixBounds();
+			bounds.count = count;
+			bounds.firstTime = firstTime;
+			bounds.lastTime = lastTime;
+			bounds.minLongitude = minLongitude;
+			bounds.minLatitude = minLatitude;
+			bounds.maxLongitude = maxLongitude;
+			bounds.maxLatitude = maxLatitude;
+			return bounds;
+		}
+	}
+
+	/**
+	 * Summarizes the fixes and markers of a track.
+	 */
+	static TrackSummary of(GpsTrack track, List<Marker> markers) {
+		return of(FixBounds.of(track), markers);
+	}
+
+	/**
+	 * Summarizes a track from the bounds of its fixes and its markers.
+	 */
+	static TrackSummary of(FixBounds fixes, List<Marker> markers) {
+		double minLon = fixes.minLongitude;
+		double minLat = fixes.minLatitude;
+		double maxLon = fixes.maxLongitude;
+		double maxLat = fixes.maxLatitude;
+		long firstTime = fixes.firstTime;
+		long lastTime = fixes.lastTime;
+		int markerCount = 0;
+		double[] points = new double[markers.size() * 2];
+		for (Marker m : markers) {
+			if (m.realpoint == null)
+				continue;
+			minLon = Math.min(minLon, m.realpoint.longitude);
+			maxLon = Math.max(maxLon, m.realpoint.longitude);
+			minLat = Math.min(minLat, m.realpoint.latitude);
+			maxLat = Math.max(maxLat, m.realpoint.latitude);
+			points[markerCount * 2] = m.realpoint.longitude;
+			points[markerCount * 2 + 1] = m.realpoint.latitude;
+			markerCount++;
+		}
+		if (minLon > maxLon) {
+			minLon = minLat = maxLon = maxLat = Double.NaN;
+		}
+		if (fixes.count == 0) {
+			firstTime = 0;
+			lastTime = 0;
+		}
+		return new TrackSummary(markers.size(), fixes.count, firstTime, lastTime,
+				minLon, minLat, maxLon, maxLat, convexHull(points, markerCount));
+	}
+
+	/**
+	 * Andrew's monotone chain.
+	 * @return hull of the count points as pairs, counter-clockwise
+	 */
+	private static double[] convexHull(double[] points, int count) {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		final double[] p = points;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(p[a * 2], p[b * 2]);
+				return (c != 0) ? c : Double.compare(p[a * 2 + 1], p[b * 2 + 1]);
+			}
+		});
+		if (count < 3) {
+			double[] result = new double[count * 2];
+			for (int i = 0; i < count; i++) {
+				result[i * 2] = p[order[i] * 2];
+				result[i * 2 + 1] = p[order[i] * 2 + 1];
+			}
+			return result;
+		}
+		int[] hull = new int[count * 2];
+		int k = 0;
+		for (int i = 0; i < count; i++) {
+			while (k >= 2 && cross(p, hull[k - 2], hull[k - 1], order[i]) <= 0)
+				k--;
+			hull[k++] = order[i];
+		}
+		for (int i = count - 2, lower = k + 1; i >= 0; i--) {
+			while (k >= lower && cross(p, hull[k - 2], hull[k - 1], order[i]) <= 0)
+				k--;
+			hull[k++] = order[i];
+		}
+		// the last point repeats the first
+		double[] result = new double[(k - 1) * 2];
+		for (int i = 0; i < k - 1; i++) {
+			result[i * 2] = p[hull[i] * 2];
+			result[i * 2 + 1] = p[hull[i] * 2 + 1];
+		}
+		return result;
+	}
+
+	private static double cross(double[] p, int o, int a, int b) {
+		return (p[a * 2] - p[o * 2]) * (p[b * 2 + 1] - p[o * 2 + 1])
+				- (p[a * 2 + 1] - p[o * 2 + 1]) * (p[b * 2] - p[o * 2]);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(markerCount);
+		out.writeInt(fixCount);
+		out.writeLong(firstTime);
+		out.writeLong(lastTime);
+		out.writeDouble(minLongitude);
+		out.writeDouble(minLatitude);
+		out.writeDouble(maxLongitude);
+		out.writeDouble(maxLatitude);
+		out.writeInt(hull.length / 2);
+		for (double d : hull)
+			out.writeDouble(d);
+	}
+
+	static TrackSummary read(DataInput in) throws IOException {
+		int markerCount = in.readInt();
+		int fixCount = in.readInt();
+		long firstTime = in.readLong();
+		long lastTime = in.readLong();
+		double minLongitude = in.readDouble();
+		double minLatitude = in.readDouble();
+		double maxLongitude = in.readDouble();
+		double maxLatitude = in.readDouble();
+		int hullCount = in.readInt();
+		if (hullCount < 0 || hullCount > markerCount)
+			throw new IOException("Corrupt track summary");
+		double[] hull = new double[hullCount * 2];
+		for (int i = 0; i < hull.length; i++)
+			hull[i] = in.readDouble();
+		return new TrackSummary(markerCount, fixCount, firstTime, lastTime,
+				minLongitude, minLatitude, maxLongitude, maxLatitude, hull);
+	}
+
+	/**
+	 * @return if the map covers the point, see class comment
+	 */
+	public boolean contains(double longitude, double latitude) {
+		if (isEmpty()
+				|| longitude < coverMinLongitude || longitude > coverMaxLongitude
+				|| latitude < coverMinLatitude || latitude > coverMaxLatitude)
+			return false;
+		if (hull.length < 6)
+			return true;
+		int n = hull.length / 2;
+		for (int i = 0, j = n - 1; i < n; j = i++) {
+			double ex = hull[i * 2] - hull[j * 2];
+			double ey = hull[i * 2 + 1] - hull[j * 2 + 1];
+			double px = longitude - hull[j * 2];
+			double py = latitude - hull[j * 2 + 1];
+			if (ex * py - ey * px < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return if there are no GpsPoints at all
+	 */
+	public boolean isEmpty() {
+		return Double.isNaN(minLongitude);
+	}
+
+	public int getMarkerCount() {
+		return markerCount;
+	}
+
+	public int getFixCount() {
+		return fixCount;
+	}
+
+	/**
+	 * @return time of the earliest GpsPoint, 0 if there is none
+	 */
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	/**
+	 * @return time of the latest GpsPoint, 0 if there is none
+	 */
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	public double getMinLongitude() {
+		return minLongitude;
+	}
+
+	public double getMinLatitude() {
+		return minLatitude;
+	}
+
+	public double getMaxLongitude() {
+		return maxLongitude;
+	}
+
+	public double getMaxLatitude() {
+		return maxLatitude;
+	}
+
+	/**
+	 * @return corners of the marker hull, counter-clockwise,
+	 * with time 0
+	 */
+	public List<GpsPoint> getHull() {
+		List<GpsPoint> result = new ArrayList<GpsPoint>(hull.length / 2);
+		for (int i = 0; i < hull.length; i += 2)
+			result.add(new GpsPoint(hull[i], hull[i + 1], 0));
+		return result;
+	}
+}
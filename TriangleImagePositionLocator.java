@@ -17,12 +17,9 @@
 
 package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
 
-import org.opencv.core.MatOfFloat6;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.imgproc.Subdiv2D;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
@@ -32,123 +29,321 @@ import java.util.List;
 public class TriangleImagePositionLocator implements ImagePositionLocator {
 	IPLSettingsContainer settings;
 	
-	private ArrayList<ProjectionTriangle> projs;
+	private static final Model EMPTY_MODEL = new Model(new ArrayList<ProjectionTriangle>(),
+			new LocalProjection(0, 0), 1, 0);
+	
+	// Replaced as a whole by newMarkerAdded, null until the first
+	// one. Queries only read it once and never lock.
+	private volatile Model model;
+	private final ThreadLocal<QueryBuffers> buffers = new ThreadLocal<QueryBuffers>();
 	private Point2D imageSize;
+	// only used by the synchronized newMarkerAdded
+	private DelaunayTriangulation triangulation;
 	
 	public TriangleImagePositionLocator(Point2D imageSize, IPLSettingsContainer settings) {
 		this.imageSize = imageSize;
 		this.settings = settings;
 	}
 	
+	/**
+	 * @return copy of the triangles of the current model,
+	 * null if there is none yet
+	 */
 	public ArrayList<ProjectionTriangle> getProjectionTriangles() {
-		return projs;
+		Model m = model;
+		if (m == null)
+			return null;
+		return new ArrayList<ProjectionTriangle>(Arrays.asList(m.projs));
 	}
 	
 	public Point2D getPointPosition(GpsPoint currentPosition) {
-		if (projs == null || currentPosition == null)
+		Model m = model;
+		if (m == null || currentPosition == null)
 			return null;
 		
-		System.out.println("\n\nNew Point : " + currentPosition.toString());
+		TraceSink trace = settings.getTraceSink();
+		if (trace != null)
+			trace.trace(TraceEvent.QUERY, currentPosition.time,
+					currentPosition.longitude, currentPosition.latitude, 0);
 		
+		QueryBuffers buf = buffers.get();
+		if (buf == null || buf.candidates.length < m.projs.length) {
+			buf = new QueryBuffers(m.projs.length);
+			buffers.set(buf);
+		}
 		FPoint2D result = new FPoint2D();
-		double sum = 0;
-		double distances[] = new double[projs.size()];
-		double distToClosestPivot = Double.MAX_VALUE;
+		m.locate(currentPosition.longitude, currentPosition.latitude, result, buf, trace);
+		
+		return new Point2D(result);
+	}
+	
+	public void getPointPositions(double[] longitudes, double[] latitudes,
+			double[] xs, double[] ys, int offset, int count) {
+		getModel().getPointPositions(longitudes, latitudes, xs, ys, offset, count);
+	}
+	
+	public LocatorModel getModel() {
+		Model m = model;
+		return (m == null) ? EMPTY_MODEL : m;
+	}
+	
+	/**
+	 * The ProjectionTriangles with their pivots in the local plane
+	 * and weights precomputed. Never changed after construction.
+	 * The fallof exponent and the weight tolerance are taken from
+	 * the settings at build time.
+	 */
+	static final class Model implements LocatorModel {
+		final ProjectionTriangle[] projs;
+		// plane all triangles and distances are computed in, in meters
+		final LocalProjection projection;
+		final double[] pivotEast;
+		final double[] pivotNorth;
+		final double[] triWeight;
+		final double fallofExponent;
+		final double minTriWeight;
+		final PointKdTree pivotIndex;
+		// search radius relative to the closest pivot
+		final double searchFactor;
 		
-		//Get closest pivot
-		for (int i = 0; i < projs.size(); i++) {
-			distances[i] = projs.get(i).getPivot().getSphericalDistance(currentPosition);
-			if (distToClosestPivot > distances[i])
-				distToClosestPivot = distances[i];
+		Model(List<ProjectionTriangle> triangles, LocalProjection projection,
+				double fallofExponent, double minTriWeight) {
+			projs = triangles.toArray(new ProjectionTriangle[triangles.size()]);
+			this.projection = projection;
+			pivotEast = new double[projs.length];
+			pivotNorth = new double[projs.length];
+			triWeight = new double[projs.length];
+			for (int i = 0; i < projs.length; i++) {
+				GpsPoint pivot = projs[i].getPivot();
+				pivotEast[i] = projection.toEast(pivot.longitude);
+				pivotNorth[i] = projection.toNorth(pivot.latitude);
+				triWeight[i] = projs[i].getWeigth();
+			}
+			this.fallofExponent = fallofExponent;
+			this.minTriWeight = minTriWeight;
+			
+			pivotIndex = new PointKdTree(pivotEast, pivotNorth, projs.length);
+			// A triangle at distance d has at most weight (dClosest/d)^fallofExponent,
+			// so beyond dClosest * minTriWeight^(-1/fallofExponent) all weights are
+			// below minTriWeight. The closest pivot is always a candidate.
+			if (minTriWeight > 0 && fallofExponent > 0)
+				searchFactor = Math.max(1, Math.pow(minTriWeight, -1 / fallofExponent));
+			else
+				searchFactor = Double.POSITIVE_INFINITY;
+		}
+		
+		/**
+		 * Repeated positions reuse the previous result.
+		 */
+		public void getPointPositions(double[] longitudes, double[] latitudes,
+				double[] xs, double[] ys, int offset, int count) {
+			if (projs.length == 0) {
+				for (int i = offset; i < offset + count; i++) {
+					xs[i] = Double.NaN;
+					ys[i] = Double.NaN;
+				}
+				return;
+			}
+			
+			// per batch state, so batches can run concurrently
+			QueryBuffers buffers = new QueryBuffers(projs.length);
+			FPoint2D result = new FPoint2D();
+			for (int i = offset; i < offset + count; i++) {
+				if (i == offset || longitudes[i] != longitudes[i - 1] || latitudes[i] != latitudes[i - 1])
+					locate(longitudes[i], latitudes[i], result, buffers, null);
+				xs[i] = result.x;
+				ys[i] = result.y;
+			}
+		}
+		
+		/**
+		 * Finds the triangles that may have a weight of at least minTriWeight.
+		 * @return number of candidates in buffers.candidates, with their
+		 * squared pivot distances in buffers.planeDist
+		 */
+		private int selectCandidates(double e, double n, QueryBuffers buffers) {
+			if (Double.isInfinite(searchFactor))
+				return selectAll(e, n, buffers);
+			int[] candidates = buffers.candidates;
+			double[] planeDist = buffers.planeDist;
+			pivotIndex.nearest(e, n, 1, candidates, planeDist);
+			double radius = Math.sqrt(planeDist[0]) * searchFactor;
+			return pivotIndex.withinRadius(e, n, radius, candidates, planeDist);
+		}
+		
+		/**
+		 * Makes every triangle a candidate, see selectCandidates.
+		 */
+		private int selectAll(double e, double n, QueryBuffers buffers) {
+			int[] candidates = buffers.candidates;
+			double[] planeDist = buffers.planeDist;
+			for (int i = 0; i < projs.length; i++) {
+				double de = pivotEast[i] - e;
+				double dn = pivotNorth[i] - n;
+				candidates[i] = i;
+				planeDist[i] = de * de + dn * dn;
+			}
+			return projs.length;
+		}
+		
+		/**
+		 * @param trace receives the used triangles and the result, may be null
+		 */
+		void locate(double longitude, double latitude, FPoint2D result,
+				QueryBuffers buffers, TraceSink trace) {
+			double e = projection.toEast(longitude);
+			double n = projection.toNorth(latitude);
+			double sum = addProjections(e, n, selectCandidates(e, n, buffers), minTriWeight,
+					result, buffers, trace);
+			if (sum == 0 && minTriWeight > 0) {
+				// every candidate is below minTriWeight, e.g. for a small
+				// badTriWeightPenalty: weigh all triangles as without it
+				sum = addProjections(e, n, selectAll(e, n, buffers), 0, result, buffers, trace);
+			}
+			result.div(sum);
+			
+			if (trace != null)
+				trace.trace(TraceEvent.RESULT, 0, result.x, result.y, sum);
 		}
 		
-		for (int i = 0; i < projs.size(); i++) {
-			double unnormdist = distToClosestPivot / distances[i];
+		/**
+		 * Sets result to the sum of the weighted projections by the
+		 * first count candidates whose weight is at least minWeight.
+		 * @return sum of the weights
+		 */
+		private double addProjections(double e, double n, int count, double minWeight,
+				FPoint2D result, QueryBuffers buffers, TraceSink trace) {
+			double distToClosestPivot = Double.MAX_VALUE;
+			int[] candidates = buffers.candidates;
+			double[] distances = buffers.distances;
 			
-			double tmp = distanceFallofFunction(unnormdist) * projs.get(i).getWeigth();
+			//Get closest pivot
+			for (int j = 0; j < count; j++) {
+				distances[j] = Math.sqrt(buffers.planeDist[j]);
+				if (distToClosestPivot > distances[j])
+					distToClosestPivot = distances[j];
+			}
 			
-			int weight = (distances[i] < 0.01) ?
-					(int) (0.01 - distances[i]) * 1000 : 1;
+			double sum = 0;
+			result.x = 0;
+			result.y = 0;
+			for (int j = 0; j < count; j++) {
+				int i = candidates[j];
+				double unnormdist = distToClosestPivot / distances[j];
+				
+				double weight = distanceFallofFunction(unnormdist) * triWeight[i];
+				if (weight < minWeight)
+					continue;
+				
+				addProjection(j, e, n, weight, result, buffers, trace);
+				sum += weight;
+			}
+			return sum;
+		}
+		
+		/**
+		 * Adds the projection by candidate j times weight to result.
+		 */
+		private void addProjection(int j, double e, double n, double weight,
+				FPoint2D result, QueryBuffers buffers, TraceSink trace) {
+			int i = buffers.candidates[j];
+			double distance = buffers.distances[j];
+			FPoint2D tmp = buffers.tmp;
+			// closer than 10 m, the priority is given in km
+			int ownPriority = (distance < 10) ?
+					(int) (0.01 - distance / 1000) * 1000 : 1;
 			
-			FPoint2D dbgtmp = projs.get(i).project(currentPosition, weight);
+			projs[i].projectLocal(e, n, ownPriority, tmp);
 			
-			result.fma(dbgtmp, tmp);
-			sum += tmp;
+			result.fma(tmp, weight);
 			
-			System.out.println("Proj of " + projs.get(i).toString() + " x:" + dbgtmp.x + " y:" + dbgtmp.y + " actweight: " + tmp);
+			if (trace != null)
+				trace.trace(TraceEvent.TRIANGLE, i, tmp.x, tmp.y, weight);
 		}
-		result.div(sum);
 		
-		System.out.println("Result: " + result.toString());
+		private double distanceFallofFunction(double d) {
+			if (d > 1) throw new IllegalArgumentException("The distance fallof is only defined from 0..1!");
+			
+			return Math.pow(d, fallofExponent);
+		}
+	}
+	
+	/**
+	 * Scratch space of Model.locate, one entry per triangle.
+	 */
+	static final class QueryBuffers {
+		final int[] candidates;
+		final double[] planeDist;
+		final double[] distances;
+		final FPoint2D tmp = new FPoint2D();
 		
-		return new Point2D(result);
+		QueryBuffers(int size) {
+			candidates = new int[size];
+			planeDist = new double[size];
+			distances = new double[size];
+		}
 	}
 	
 	/**
 	 * Builds ProjectionTriangles from triangulated markers.
-	 * Requires OpenCV!
+	 * The triangulation is kept between calls, only added
+	 * and removed markers are updated.
 	 */
-	public void newMarkerAdded(List<Marker> markers) {		
+	public synchronized void newMarkerAdded(List<Marker> markers) {		
 		if (markers.size() < 2) return;
 		
+		updateTriangulation(markers);
+		LocalProjection projection = LocalProjection.forMarkers(markers);
+		
 		if (markers.size() == 2) {
 			//Guess third marker
-			projs = new ArrayList<ProjectionTriangle>();
-			projs.add(new ProjectionTriangle(markers.get(0), markers.get(1)));
+			ArrayList<ProjectionTriangle> tmplist = new ArrayList<ProjectionTriangle>();
+			tmplist.add(new ProjectionTriangle(markers.get(0), markers.get(1), projection));
+			model = new Model(tmplist, projection, settings.getFallofExponent(), settings.getMinTriWeight());
 		} else {
-			Subdiv2D subdiv = new Subdiv2D();
-			subdiv.initDelaunay(new Rect(0,0,imageSize.x,imageSize.y));
-			
-			for (Marker m : markers)
-				System.out.println("-> " + m.realpoint.longitude + " / " + m.realpoint.latitude);
-			for (Marker m : markers)
-				subdiv.insert(new Point(m.imgpoint.x, m.imgpoint.y));
-			
-			MatOfFloat6 mafloat = new MatOfFloat6();
-			subdiv.getTriangleList(mafloat);
-			float[] tmparray = mafloat.toArray();
+			TraceSink trace = settings.getTraceSink();
+			if (trace != null) {
+				for (int i = 0; i < markers.size(); i++) {
+					Marker m = markers.get(i);
+					trace.trace(TraceEvent.MARKER, i, m.realpoint.longitude, m.realpoint.latitude, 0);
+				}
+			}
 			
 			ArrayList<ProjectionTriangle> tmplist = new ArrayList<ProjectionTriangle>();
-			for (int i = 0; i < tmparray.length; i += 6) {
-				Marker m1 = findMarkerByPoint(markers, tmparray[i], tmparray[i + 1]);
-				Marker m2 = findMarkerByPoint(markers, tmparray[i + 2], tmparray[i + 3]);
-				Marker m3 = findMarkerByPoint(markers, tmparray[i + 4], tmparray[i + 5]);
-				
-				if (m1 != null && m2 != null && m3 != null)
-					tmplist.add(new ProjectionTriangle(m1, m2, m3,
-							settings.getMaxDissimilarityPercent(),
-							settings.getBadTriWeightPenalty(),
-							settings.getMinTriAngleSize()));
-			}
+			for (Marker[] tri : triangulation.getTriangles())
+				tmplist.add(new ProjectionTriangle(tri[0], tri[1], tri[2],
+						settings.getMaxDissimilarityPercent(),
+						settings.getBadTriWeightPenalty(),
+						settings.getMinTriAngleSize(), projection));
 			
-			for (ProjectionTriangle mainPt : tmplist) {
-				for (ProjectionTriangle subPt : tmplist) {
-					if (mainPt != subPt)
-						mainPt.tryAddToProjGroup(subPt);
-				}
-			}
+			ProjectionGroupBuilder.build(tmplist, TrackReprojector.getDefaultPool());
+			
+			model = new Model(tmplist, projection, settings.getFallofExponent(), settings.getMinTriWeight());
 			
-			projs = tmplist;
+			if (trace != null)
+				trace.trace(TraceEvent.MODEL, markers.size(), tmplist.size(), 0, 0);
 		}
 	}
 	
 	/**
-	 * Decides if the lng and lat values represent a GpsPoint of a Marker.
-	 * @return The found Marker.
+	 * Inserts new and removes vanished markers.
 	 */
-	private Marker findMarkerByPoint(List<Marker> markers, float x, float y) {
+	private void updateTriangulation(List<Marker> markers) {
+		if (triangulation == null)
+			triangulation = new DelaunayTriangulation(imageSize.x, imageSize.y);
+		
+		IdentityHashMap<Marker, Boolean> current = new IdentityHashMap<Marker, Boolean>();
+		for (Marker m : markers)
+			current.put(m, Boolean.TRUE);
+		for (Marker m : triangulation.getMarkers()) {
+			if (!current.containsKey(m))
+				triangulation.remove(m);
+		}
+		// Markers with the image point of a known one are
+		// not inserted, so they are retried on every call.
 		for (Marker m : markers) {
-			if (m.imgpoint.x == (int) x
-			&& (m.imgpoint.y == (int) y)) {
-				return m;
-			}
+			if (!triangulation.contains(m))
+				triangulation.insert(m);
 		}
-		return null;
-	}
-	
-	private double distanceFallofFunction(double d) {
-		if (d > 1) throw new IllegalArgumentException("The distance fallof is only defined from 0..1!");
-		
-		return Math.pow(d, settings.getFallofExponent());
 	}
 }
@@ -0,0 +1,77 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that LeastSquaresImagePositionLocator.getPointPosition(double,
+ * double, FPoint2D) does not allocate once warmed up, in all three
+ * search modes. Counts the bytes allocated by the current thread with
+ * com.sun.management.ThreadMXBean. Exits with 1 on failure.
+ *
+ * Run with the library on the class path:
+ * java de.hu_berlin.informatik.spws2014.ImagePositionLocator.LeastSquaresAllocationTest
+ */
+public class LeastSquaresAllocationTest {
+	private static final int MARKERS = 300;
+	private static final int WARMUP = 50000;
+	private static final int QUERIES = 200000;
+	// slack for the measurement itself
+	private static final long MAX_BYTES = 1024;
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean mx =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!mx.isThreadAllocatedMemorySupported()) {
+			System.out.println("SKIPPED: allocation counting not supported by this JVM");
+			return;
+		}
+		mx.setThreadAllocatedMemoryEnabled(true);
+
+		Random r = new Random(1);
+		ArrayList<Marker> markers = new ArrayList<Marker>();
+		for (int i = 0; i < MARKERS; i++) {
+			double lon = 13.3 + r.nextDouble() * 0.05;
+			double lat = 52.5 + r.nextDouble() * 0.05;
+			markers.add(new Marker(new Point2D((lon - 13.3) * 40000, (52.55 - lat) * 40000),
+					i, new GpsPoint(lon, lat, i)));
+		}
+		double[] lons = new double[1024];
+		double[] lats = new double[1024];
+		for (int i = 0; i < lons.length; i++) {
+			lons[i] = 13.3 + r.nextDouble() * 0.05;
+			lats[i] = 52.5 + r.nextDouble() * 0.05;
+		}
+
+		boolean isFailed = false;
+		String[] modes = { "all markers", "10 nearest", "radius 500 m" };
+		for (int mode = 0; mode < modes.length; mode++) {
+			LeastSquaresImagePositionLocator locator = new LeastSquaresImagePositionLocator();
+			locator.newMarkerAdded(markers);
+			if (mode == 1)
+				locator.setNearestMarkerCount(10);
+			else if (mode == 2)
+				locator.setMaxMarkerDistance(500);
+			FPoint2D result = new FPoint2D();
+			double checksum = 0;
+			for (int i = 0; i < WARMUP; i++) {
+				locator.getPointPosition(lons[i & 1023], lats[i & 1023], result);
+				checksum += result.x;
+			}
+			long id = Thread.currentThread().getId();
+			long before = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < QUERIES; i++) {
+				locator.getPointPosition(lons[i & 1023], lats[i & 1023], result);
+				checksum += result.x;
+			}
+			long bytes = mx.getThreadAllocatedBytes(id) - before;
+			boolean isOk = bytes <= MAX_BYTES;
+			isFailed |= !isOk;
+			System.out.println((isOk ? "OK   " : "FAIL ") + modes[mode] + ": " + bytes
+					+ " bytes for " + QUERIES + " queries (checksum " + checksum + ")");
+		}
+		if (isFailed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,132 @@
+package de.hu_berlin.informatik.spws2014.ImagePositionLocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the pairwise projection group loop with the candidate
+ * search of ProjectionGroupBuilder, on a single thread and on all
+ * cores, and checks that all give the same groups. The markers are
+ * a noisy, slightly skewed affine map of gps to image coordinates,
+ * like a scanned map. Exits with 1 if the groups differ.
+ *
+ * Run with the library on the class path:
+ * java de.hu_berlin.informatik.spws2014.ImagePositionLocator.ProjectionGroupBenchmark [markers...]
+ */
+public class ProjectionGroupBenchmark {
+	private static final int IMAGE_SIZE = 10000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int[] sizes = { 25, 50, 100, 200, 400, 800, 1600, 3200, 6400 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		ForkJoinPool single = new ForkJoinPool(1);
+		ForkJoinPool parallel = new ForkJoinPool();
+		boolean isFailed = false;
+		System.out.println("markers triangles avg_group pairwise_ms indexed_ms parallel_ms");
+		for (int size : sizes) {
+			List<Marker> markers = createMarkers(new Random(size), size);
+			long pairwise = Long.MAX_VALUE;
+			long indexed = Long.MAX_VALUE;
+			long indexedParallel = Long.MAX_VALUE;
+			int triangles = 0;
+			double groupSize = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				List<ProjectionTriangle> a = createTriangles(markers);
+				List<ProjectionTriangle> b = createTriangles(markers);
+				List<ProjectionTriangle> c = createTriangles(markers);
+				triangles = a.size();
+				long t0 = System.nanoTime();
+				buildPairwise(a);
+				long t1 = System.nanoTime();
+				ProjectionGroupBuilder.build(b, single);
+				long t2 = System.nanoTime();
+				ProjectionGroupBuilder.build(c, parallel);
+				long t3 = System.nanoTime();
+				pairwise = Math.min(pairwise, t1 - t0);
+				indexed = Math.min(indexed, t2 - t1);
+				indexedParallel = Math.min(indexedParallel, t3 - t2);
+				if (round == 0)
+					groupSize = getAverageGroupSize(a);
+				if (round == 0 && (!isSameGroups(a, b) || !isSameGroups(a, c))) {
+					System.out.println("FAIL groups differ for " + size + " markers");
+					isFailed = true;
+				}
+			}
+			System.out.println(size + " " + triangles + " " + Math.round(groupSize) + " " + pairwise / 1000000.0
+					+ " " + indexed / 1000000.0 + " " + indexedParallel / 1000000.0);
+		}
+		single.shutdown();
+		parallel.shutdown();
+		if (isFailed)
+			System.exit(1);
+	}
+
+	/**
+	 * The reference: tryAddToProjGroup for every pair.
+	 */
+	private static void buildPairwise(List<ProjectionTriangle> list) {
+		for (ProjectionTriangle mainPt : list) {
+			for (ProjectionTriangle subPt : list) {
+				if (mainPt != subPt)
+					mainPt.tryAddToProjGroup(subPt);
+			}
+		}
+	}
+	
+	private static List<Marker> createMarkers(Random r, int count) {
+		List<Marker> markers = new ArrayList<Marker>();
+		for (int i = 0; i < count; i++) {
+			double u = r.nextDouble();
+			double v = r.nextDouble();
+			double x = IMAGE_SIZE * (0.9 * u + 0.1 * v) + r.nextGaussian() * IMAGE_SIZE * 0.003;
+			double y = IMAGE_SIZE * (1 - v) + 0.05 * IMAGE_SIZE * u + r.nextGaussian() * IMAGE_SIZE * 0.003;
+			markers.add(new Marker(new Point2D(Math.max(0, Math.min(IMAGE_SIZE, x)),
+					Math.max(0, Math.min(IMAGE_SIZE, y))), i,
+					new GpsPoint(13.3 + u * 0.1, 52.5 + v * 0.1, i)));
+		}
+		return markers;
+	}
+
+	private static List<ProjectionTriangle> createTriangles(List<Marker> markers) {
+		DelaunayTriangulation triangulation = new DelaunayTriangulation(IMAGE_SIZE, IMAGE_SIZE);
+		for (Marker m : markers)
+			triangulation.insert(m);
+		LocalProjection projection = LocalProjection.forMarkers(markers);
+		IPLSettingsContainer settings = IPLSettingsContainer.DefaultContainer;
+		List<ProjectionTriangle> triangles = new ArrayList<ProjectionTriangle>();
+		for (Marker[] tri : triangulation.getTriangles())
+			triangles.add(new ProjectionTriangle(tri[0], tri[1], tri[2],
+					settings.getMaxDissimilarityPercent(),
+					settings.getBadTriWeightPenalty(),
+					settings.getMinTriAngleSize(), projection));
+		return triangles;
+	}
+
+	private static double getAverageGroupSize(List<ProjectionTriangle> triangles) {
+		long sum = 0;
+		for (ProjectionTriangle t : triangles)
+			sum += t.projectionGroup.size();
+		return (double) sum / triangles.size();
+	}
+
+	private static boolean isSameGroups(List<ProjectionTriangle> a, List<ProjectionTriangle> b) {
+		for (int i = 0; i < a.size(); i++) {
+			List<ProjectionTriangle> groupA = a.get(i).projectionGroup;
+			List<ProjectionTriangle> groupB = b.get(i).projectionGroup;
+			if (groupA.size() != groupB.size())
+				return false;
+			for (int j = 0; j < groupA.size(); j++) {
+				if (a.indexOf(groupA.get(j)) != b.indexOf(groupB.get(j)))
+					return false;
+			}
+		}
+		return true;
+	}
+}